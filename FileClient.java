@@ -1,26 +1,154 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class FileClient {
-    private final Map<String, String> fileData;
+    // Paths under this root form the virtual namespace: each one is placed on a server by
+    // consistent hashing and kept under the same directory there.
+    static final String VIRTUAL_ROOT = "dfs";
+    // Opened files up to this size are kept in memory, larger ones are spilled to a temp file.
+    private static final long IN_MEMORY_LIMIT = 8 * 1024 * 1024;
+    // Chunks of a streaming OPEN the server may send ahead of the reader.
+    private static final int STREAM_WINDOW = 4;
+    // Bytes of closed files kept for revalidation with a conditional OPEN.
+    private static final long OPEN_CACHE_LIMIT = 32 * 1024 * 1024;
+    // Queued to a streaming OPEN when its connection ends, in place of a chunk.
+    private static final Frame CONNECTION_CLOSED = new Frame((byte) 0, 0, Frame.STATUS_ERROR, (byte) 0, new byte[0]);
+    // Queued as the last reply line of a text connection that ended.
+    private static final String CONNECTION_LOST = new String("CONNECTION_LOST");
+    // Well inside the server's default lease of 60 s.
+    private static final long HEARTBEAT_MILLIS = 15_000;
+    // Smaller request payloads are not worth deflating; the server has its own --compress-min.
+    private static final int COMPRESS_MIN = 1024;
+    // How often the server list is checked for added servers.
+    private static final long SERVER_LIST_POLL_MILLIS = 2_000;
+    // Chunk size of striped files unless UPLOAD names one.
+    private static final long STRIPE_CHUNK = 8L * 1024 * 1024;
+    // Chunk transfers in flight per server, so each connection has the next chunk queued.
+    private static final int STRIPE_TRANSFERS_PER_SERVER = 2;
+    // Piece size of rebalance copies: a moved file is streamed over, never held whole.
+    private static final int MOVE_CHUNK = 4 * 1024 * 1024;
+    // Entries per LS reply; the next page is only asked for once this one is used up.
+    private static final int LS_PAGE = 1000;
+    // Attributes shown by LS -l, in the order the server sends them.
+    private static final String LS_DETAILS = " attrs=type,size,mtime";
+    // Weight of the newest sample in a connection's average reply time.
+    private static final double LATENCY_WEIGHT = 0.2;
+    // Starts the first line of a push on a text connection, see readLines.
+    private static final String PUSH_MARK = "\u001E";
+
+    private final Map<String, PieceTable> fileData;
+    private final Map<String, Path> spilledFiles = new ConcurrentHashMap<>();
+    // Ranges changed since OPEN and where the opened region starts in the server's file.
+    private final Map<String, DirtyRanges> dirtyRanges = new HashMap<>();
+    private final Map<String, Long> openOffsets = new HashMap<>();
+    private final OpenCache openCache = new OpenCache(OPEN_CACHE_LIMIT);
     private final Map<String, String> filePermissions;
     private final Map<Integer, ConnectionResources> connections;
     private final Map<String, Integer> serverPortMap;
-    private final ConcurrentHashMap<String, Thread> threadMap = new ConcurrentHashMap<>();
+    private final Map<String, List<UpdateListener>> updateListeners = new ConcurrentHashMap<>();
+    // Heartbeats and the server list watch.
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "client-timers");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Servers of the virtual namespace, replaced as a whole when one is added.
+    private volatile HashRing ring = new HashRing(Collections.emptyList());
+    // The ring before servers were added, until a rebalance has moved every file off it; null otherwise.
+    private volatile HashRing previousRing;
+    private final AtomicBoolean rebalancing = new AtomicBoolean();
+    // Port each open virtual path was opened on, so a rebalance cannot send its CLOSE elsewhere.
+    private final Map<String, Integer> openPorts = new ConcurrentHashMap<>();
+    private final Set<Integer> virtualRoots = ConcurrentHashMap.newKeySet();
+    // Copies kept of each virtual file, on consecutive servers of the ring, and how many
+    // of them a write needs before it succeeds; 0 for a majority.
+    private int replicas = 1;
+    private int writeQuorum;
 
     private class ConnectionResources {
         Socket socket;
         PrintWriter out;
         BufferedReader in;
+        // Text protocol: reply lines, split off from FILE_UPDATE pushes by the connection's reader thread.
+        final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+        // Set when the server accepted the binary protocol; in and out are unused then.
+        boolean binary;
+        // Set when the server also agreed to deflate file data; large requests are deflated too.
+        boolean deflate;
+        DataInputStream dataIn;
+        OutputStream dataOut;
+        // Guards dataOut, nextRequestId and closed.
+        final Object writeLock = new Object();
+        int nextRequestId = 1;
+        boolean closed;
+        // Requests waiting for frames, by request id. Filled by callers, served by the reader thread.
+        final Map<Integer, ReplyListener> pending = new ConcurrentHashMap<>();
+        // Moving average of the time to a request's first reply frame; 0 until measured.
+        volatile double latencyNanos;
+
+        void recordLatency(long startNanos) {
+            long sample = System.nanoTime() - startNanos;
+            double average = latencyNanos;
+            latencyNanos = average == 0 ? sample : average + LATENCY_WEIGHT * (sample - average);
+        }
 
         ConnectionResources(Socket socket, PrintWriter out, BufferedReader in) {
             this.socket = socket;
@@ -29,43 +157,1144 @@ public class FileClient {
         }
     }
 
+    /**
+     * Called on a connection's reader thread whenever the server pushes new content of
+     * a file; it should return quickly, as no other frame of that connection is read
+     * meanwhile.
+     */
+    public interface UpdateListener {
+        void fileUpdated(String fileName, byte[] content);
+    }
+
+    // One chunk of a striped transfer.
+    private interface ChunkTransfer {
+        void transfer(int chunk) throws IOException;
+    }
+
+    // Receives the frames of one request from the connection's reader thread.
+    private interface ReplyListener {
+        // Returns true once the request has had its last frame.
+        boolean onFrame(Frame frame);
+
+        void onClose(IOException cause);
+    }
+
+    private static class SingleReply implements ReplyListener {
+        final CompletableFuture<Frame> future = new CompletableFuture<>();
+
+        @Override
+        public boolean onFrame(Frame frame) {
+            future.complete(frame);
+            return true;
+        }
+
+        @Override
+        public void onClose(IOException cause) {
+            future.completeExceptionally(cause);
+        }
+    }
+
     public FileClient() {
-        connections = new HashMap<>(); // store port number and sockets
-        serverPortMap = new HashMap<>(); // Initialize the server-port map
-        this.fileData = new HashMap<>(); // store file data
-        this.filePermissions = new HashMap<>(); // store permission for each file
+        connections = new ConcurrentHashMap<>(); // store port number and sockets, also added to by the list watch
+        serverPortMap = new ConcurrentHashMap<>(); // Initialize the server-port map
+        this.fileData = new ConcurrentHashMap<>(); // store file data, also updated by reader threads
+        this.filePermissions = new ConcurrentHashMap<>(); // store permission for each file
     }
 
     public void connectToServers(String serverListFilePath) {
+        connectNewServers(serverListFilePath);
+        ring = new HashRing(namespaceServers());
+        startHeartbeat();
+        watchServerList(new File(serverListFilePath));
+    }
+
+    // Connects to the servers of the list that are not known yet and returns their names.
+    private List<String> connectNewServers(String serverListFilePath) {
+        List<String> added = new ArrayList<>();
         try (Scanner scanner = new Scanner(new File(serverListFilePath))) {
             while (scanner.hasNextLine()) {
                 String line = scanner.nextLine();
                 String[] parts = line.split(" ");
-                if (parts.length == 2) {
+                if (parts.length == 2 && !serverPortMap.containsKey(parts[1])) {
                     String serverName = parts[1];
                     int port = Integer.parseInt(parts[0]);
                     String ip = "127.0.0.1";
                     serverPortMap.put(serverName, port); // Store server and port information
                     startConnection(ip, port, serverName);
+                    added.add(serverName);
                 }
             }
         } catch (FileNotFoundException e) {
             System.out.println("Server list file not found: " + e.getMessage());
         }
+        return added;
+    }
+
+    // The virtual namespace spans the servers reached over the binary protocol, which moving files needs.
+    private List<String> namespaceServers() {
+        List<String> servers = new ArrayList<>();
+        for (Map.Entry<String, Integer> server : serverPortMap.entrySet()) {
+            if (isBinary(server.getValue())) {
+                servers.add(server.getKey());
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Picks up servers added to the server list while the client runs. They join the
+     * virtual namespace at once and a background rebalance moves over the files that now
+     * belong to them; a pass that had to skip files, e.g. ones open for writing, is
+     * retried on a later check. Servers removed from the list are not handled.
+     */
+    private void watchServerList(File serverList) {
+        long[] lastModified = { serverList.lastModified() };
+        timers.scheduleWithFixedDelay(() -> {
+            long modified = serverList.lastModified();
+            if (modified != lastModified[0]) {
+                lastModified[0] = modified;
+                List<String> added = connectNewServers(serverList.getPath());
+                added.retainAll(namespaceServers());
+                if (!added.isEmpty()) {
+                    if (previousRing == null) {
+                        previousRing = ring;
+                    }
+                    ring = new HashRing(namespaceServers());
+                    System.out.println("\n Servers added to the virtual namespace: " + added);
+                    System.out.print("cmd > ");
+                }
+            }
+            if (previousRing != null) {
+                startRebalance();
+            }
+        }, SERVER_LIST_POLL_MILLIS, SERVER_LIST_POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void startRebalance() {
+        if (!rebalancing.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                rebalance();
+            } finally {
+                rebalancing.set(false);
+            }
+        }, "rebalance");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Moves every file of the virtual namespace that is not on its owners in the current
+     * ring, and has the primary of each file copy it to the other owners. Only the files
+     * whose arc the new servers took over move, about 1/N of them for the Nth server.
+     */
+    private void rebalance() {
+        HashRing target = ring;
+        int moved = 0;
+        int skipped = 0;
+        for (String server : target.servers()) {
+            int port = serverPortMap.get(server);
+            for (String path : listVirtualFiles(port, VIRTUAL_ROOT)) {
+                List<String> owners = target.serversFor(path, replicas);
+                if (owners.size() == 1 && owners.get(0).equals(server)) {
+                    continue;
+                }
+                boolean owned = owners.contains(server);
+                if (owned && !owners.get(0).equals(server)) {
+                    continue; // The primary copies it.
+                }
+                if (moveFile(path, port, ports(owners), owned)) {
+                    moved++;
+                } else {
+                    skipped++;
+                }
+            }
+        }
+        if (skipped == 0 && ring == target) {
+            previousRing = null;
+        }
+        if (moved > 0 || skipped > 0) {
+            System.out.println("\n Rebalanced virtual namespace: " + moved + " file(s) moved or copied"
+                    + (skipped > 0 ? ", " + skipped + " to retry" : ""));
+            System.out.print("cmd > ");
+        }
+    }
+
+    // Files under dir on one server, from one recursive LS, leaving out the chunks of striped files.
+    private List<String> listVirtualFiles(int port, String dir) {
+        List<String> files = new ArrayList<>();
+        Iterator<String> entries = listPages(port, dir, " recursive=true attrs=type", false);
+        while (entries.hasNext()) {
+            String[] entry = entries.next().split("\t");
+            String name = entry[0];
+            if (entry.length > 1 && "file".equals(entry[1]) && !name.contains(StripedFile.STRIPES_SUFFIX + "/")) {
+                files.add(dir + "/" + name);
+            }
+        }
+        return files;
+    }
+
+    // Names in a directory of one server; empty if it does not exist there.
+    private List<String> listEntries(int port, String dir) {
+        List<String> names = new ArrayList<>();
+        listPages(port, dir, "", false).forEachRemaining(names::add);
+        return names;
+    }
+
+    /**
+     * Lines of an LS of one server, fetched LS_PAGE at a time as the iterator advances,
+     * so a huge directory is neither sent nor held at once. Options are appended to each
+     * request. A failed page ends the listing, with the server's error printed if report.
+     */
+    private Iterator<String> listPages(int port, String dir, String options, boolean report) {
+        return new Iterator<String>() {
+            private Iterator<String> page = Collections.emptyIterator();
+            private String cursor = ""; // Empty before the first page, null after the last.
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && cursor != null) {
+                    List<String> lines = fetchLsPage(port, "LS " + dir + " limit=" + LS_PAGE + options
+                            + (cursor.isEmpty() ? "" : " cursor=" + cursor), report);
+                    cursor = null;
+                    if (lines == null) {
+                        break;
+                    }
+                    int last = lines.size() - 1;
+                    if (last >= 0 && lines.get(last).startsWith("NEXT_CURSOR ")) {
+                        cursor = lines.remove(last).substring("NEXT_CURSOR ".length());
+                    }
+                    page = lines.iterator();
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+        };
+    }
+
+    // One LS reply without its END_OF_LS; null if the server answered with an error.
+    private List<String> fetchLsPage(int port, String request, boolean report) {
+        List<String> lines = new ArrayList<>();
+        String error = null;
+        if (isBinary(port)) {
+            Frame reply = exchange(port, Frame.COMMAND, request.getBytes(StandardCharsets.UTF_8));
+            if (reply == null) {
+                return null;
+            }
+            if (reply.status != Frame.STATUS_OK) {
+                error = reply.text();
+            } else {
+                for (String line : reply.text().split("\\R")) {
+                    if (!line.isEmpty()) {
+                        lines.add(line);
+                    }
+                }
+            }
+        } else {
+            sendRequest(port, request);
+            String response;
+            while (!(response = getResponse(port)).equals("END_OF_LS")) {
+                if (response.startsWith("Error")) {
+                    error = response; // No END_OF_LS follows an error.
+                    break;
+                }
+                lines.add(response);
+            }
+        }
+        if (error != null) {
+            if (report) {
+                System.out.println(error);
+            }
+            return null;
+        }
+        return lines;
+    }
+
+    // An LS line as printed: the bare name, or with -l its type, size and modification time.
+    private static void printLsLine(String line, boolean details) {
+        String[] fields = line.split("\t");
+        if (!details || fields.length < 4) {
+            System.out.println(fields[0]);
+            return;
+        }
+        System.out.println(String.format("%-5s %12s  %s  %s", fields[1], fields[2],
+                Instant.ofEpochMilli(Long.parseLong(fields[3])), fields[0]));
+    }
+
+    /**
+     * Copies one file to the servers that should have it and, unless keepSource, deletes
+     * it on the old one, holding its write lock on the old server throughout so no write
+     * slips in between. The content is streamed from the old server and passed on piece
+     * by piece, so a file of any size moves in constant memory. Returns false, and the
+     * file stays where it was, if it is locked or could not be copied to every server.
+     */
+    private boolean moveFile(String path, int from, List<Integer> targets, boolean keepSource) {
+        List<Integer> others = new ArrayList<>(targets);
+        others.remove(Integer.valueOf(from));
+        try (ChunkInputStream stream = openStream(from, "OPEN " + path + " rw", false)) {
+            if (stream == null) {
+                return false;
+            }
+            if (!copyFile(path, stream, others)) {
+                releaseWrite(from, path);
+                return false;
+            }
+        } catch (IOException e) {
+            releaseWrite(from, path);
+            return false;
+        }
+        if (keepSource) {
+            releaseWrite(from, path);
+            return true;
+        }
+        openCache.remove(from, path);
+        Frame deleted = exchange(from, Frame.COMMAND, ("DELETE " + path).getBytes(StandardCharsets.UTF_8));
+        return deleted != null && deleted.status == Frame.STATUS_OK;
+    }
+
+    // Creates a file of the virtual namespace on the given servers with the content read
+    // from the stream, except where it is there already. Copies left half written are deleted.
+    private boolean copyFile(String path, InputStream content, List<Integer> targets) throws IOException {
+        List<Integer> receiving = new ArrayList<>();
+        for (int to : targets) {
+            createParents(to, path);
+            Frame created = exchange(to, Frame.COMMAND, ("CREATE_FILE " + path).getBytes(StandardCharsets.UTF_8));
+            if (created == null || (created.status != Frame.STATUS_OK && !created.text().contains("already exists"))) {
+                deleteCopies(path, receiving);
+                return false;
+            }
+            // A copy already on the server was written there through the new ring and wins.
+            if (created.status == Frame.STATUS_OK) {
+                receiving.add(to);
+            }
+        }
+        if (receiving.isEmpty()) {
+            return true;
+        }
+        byte[] piece = new byte[MOVE_CHUNK];
+        long offset = 0;
+        int length;
+        while ((length = content.readNBytes(piece, 0, piece.length)) > 0) {
+            for (int to : receiving) {
+                if (!appendPiece(to, path, offset, piece, length)) {
+                    deleteCopies(path, receiving);
+                    return false;
+                }
+            }
+            offset += length;
+        }
+        return true;
+    }
+
+    // Appends to a copy under a write lock on just the appended range: an OPEN at the end
+    // of the file, then the PATCH that ends it.
+    private boolean appendPiece(int port, String path, long offset, byte[] piece, int length) {
+        Frame opened = exchange(port, Frame.OPEN,
+                ("OPEN " + path + " rw " + offset + " " + length).getBytes(StandardCharsets.UTF_8));
+        if (opened == null || opened.status != Frame.STATUS_OK) {
+            return false;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(length + path.length() + 32);
+        try {
+            DataOutputStream data = new DataOutputStream(payload);
+            data.writeUTF(path);
+            data.writeInt(1);
+            data.writeLong(offset);
+            data.writeInt(length);
+            data.write(piece, 0, length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Not thrown by a ByteArrayOutputStream.
+        }
+        Frame patched = exchange(port, Frame.PATCH, payload.toByteArray());
+        return patched != null && patched.status == Frame.STATUS_OK;
+    }
+
+    private void deleteCopies(String path, List<Integer> ports) {
+        for (int port : ports) {
+            exchange(port, Frame.COMMAND, ("DELETE " + path).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Creates the directories of a virtual path on one server, the virtual root included.
+    private void createParents(int port, String path) {
+        ensureVirtualRoot(port);
+        for (int slash = path.indexOf('/', VIRTUAL_ROOT.length() + 1); slash != -1; slash = path.indexOf('/',
+                slash + 1)) {
+            exchange(port, Frame.COMMAND, ("CREATE_DIR " + path.substring(0, slash)).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // An empty PATCH, which ends a write OPEN without changing the file.
+    private void releaseWrite(int port, String path) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try {
+            DataOutputStream data = new DataOutputStream(payload);
+            data.writeUTF(path);
+            data.writeInt(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Not thrown by a ByteArrayOutputStream.
+        }
+        exchange(port, Frame.PATCH, payload.toByteArray());
+    }
+
+    // The virtual root directory is created on a server the first time it is needed there.
+    private void ensureVirtualRoot(int port) {
+        if (virtualRoots.add(port)) {
+            exchange(port, Frame.COMMAND, ("CREATE_DIR " + VIRTUAL_ROOT).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Port of the server a path of the virtual namespace is on: the one it was opened on,
+     * or else its owner in the ring. While a rebalance is still moving files, a path the
+     * owner does not have yet is looked up on its previous owner.
+     */
+    Integer locate(String path) {
+        Integer port = openPorts.get(path);
+        if (port != null) {
+            return port;
+        }
+        String owner = ring.serverFor(path);
+        if (owner == null) {
+            return null;
+        }
+        port = serverPortMap.get(owner);
+        ensureVirtualRoot(port);
+        HashRing previous = previousRing;
+        String previousOwner = previous != null ? previous.serverFor(path) : null;
+        if (previousOwner != null && !previousOwner.equals(owner)) {
+            int slash = path.lastIndexOf('/');
+            if (!listEntries(port, path.substring(0, slash)).contains(path.substring(slash + 1))) {
+                return serverPortMap.get(previousOwner);
+            }
+        }
+        return port;
+    }
+
+    private List<Integer> ports(List<String> servers) {
+        List<Integer> ports = new ArrayList<>();
+        for (String server : servers) {
+            ports.add(serverPortMap.get(server));
+        }
+        return ports;
+    }
+
+    /**
+     * Port to read a path of the virtual namespace from: among its replicas, the one
+     * whose connection has the fewest requests in flight weighted by its average reply
+     * time. Paths that are open, or could still be on their old server, go to locate.
+     */
+    Integer locateRead(String path) {
+        if (replicas <= 1 || previousRing != null || openPorts.containsKey(path)) {
+            return locate(path);
+        }
+        Integer best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int port : ports(ring.serversFor(path, replicas))) {
+            ConnectionResources resources = connections.get(port);
+            if (resources == null || resources.socket.isClosed()) {
+                continue;
+            }
+            double score = (resources.pending.size() + 1) * resources.latencyNanos;
+            if (score < bestScore) {
+                best = port;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            return locate(path);
+        }
+        ensureVirtualRoot(best);
+        return best;
+    }
+
+    /**
+     * Options for a write OPEN of a virtual path on its primary: the other replicas,
+     * which the primary forwards the write to, and the write quorum. Empty without
+     * replication.
+     */
+    private String replicationOptions(String path, int primary) {
+        StringBuilder options = new StringBuilder();
+        for (int port : ports(ring.serversFor(path, replicas))) {
+            if (port != primary) {
+                options.append(options.length() == 0 ? " replicas=" : ",").append("127.0.0.1:").append(port);
+            }
+        }
+        if (options.length() > 0 && writeQuorum > 0) {
+            options.append(" quorum=").append(writeQuorum);
+        }
+        return options.toString();
+    }
+
+    // New files of the virtual namespace are created on every replica, so later writes only change them.
+    private void createVirtualFile(String path) {
+        String reply = null;
+        for (int port : ports(ring.serversFor(path, replicas))) {
+            ensureVirtualRoot(port);
+            Frame frame = exchange(port, Frame.COMMAND, ("CREATE_FILE " + path).getBytes(StandardCharsets.UTF_8));
+            if (frame != null && reply == null) {
+                reply = frame.text();
+            }
+        }
+        System.out.println(reply != null ? reply : "Error: No server in the virtual namespace");
+    }
+
+    // Lists a directory of the virtual namespace: the entries it has on any server, first copy winning.
+    private void listVirtualDirectory(String dir, boolean details, boolean recursive) {
+        String options = (details ? LS_DETAILS : "") + (recursive ? " recursive=true" : "");
+        Map<String, String> lines = new TreeMap<>();
+        boolean found = false;
+        for (String server : ring.servers()) {
+            int port = serverPortMap.get(server);
+            if (fetchLsPage(port, "LS " + dir + " limit=1", false) == null) {
+                continue;
+            }
+            found = true;
+            Iterator<String> entries = listPages(port, dir, options, false);
+            while (entries.hasNext()) {
+                String line = entries.next();
+                String name = line.split("\t", 2)[0];
+                if (!name.endsWith(StripedFile.STRIPES_SUFFIX) && !name.contains(StripedFile.STRIPES_SUFFIX + "/")) {
+                    lines.putIfAbsent(name, line);
+                }
+            }
+        }
+        if (!found) {
+            System.out.println("Error: Directory does not exist - " + dir);
+            return;
+        }
+        for (String line : lines.values()) {
+            printLsLine(line, details);
+        }
+    }
+
+    // Directories of the virtual namespace exist on every server, so files under them can go anywhere.
+    private void createVirtualDirectory(String dir) {
+        String reply = null;
+        for (String server : ring.servers()) {
+            int port = serverPortMap.get(server);
+            ensureVirtualRoot(port);
+            Frame frame = exchange(port, Frame.COMMAND, ("CREATE_DIR " + dir).getBytes(StandardCharsets.UTF_8));
+            if (frame != null && (reply == null || frame.status == Frame.STATUS_OK)) {
+                reply = frame.text();
+            }
+        }
+        System.out.println(reply != null ? reply : "Error: No server in the virtual namespace");
+    }
+
+    /**
+     * Uploads a local file to the virtual namespace as a striped file: chunks spread
+     * round-robin over every server, written in parallel over all connections, then the
+     * manifest at the path itself. A striped file already at the path is replaced.
+     */
+    private void uploadStriped(String path, Path localFile, long chunkSize) {
+        List<String> servers = new ArrayList<>(ring.servers());
+        if (servers.isEmpty()) {
+            System.out.println("Error: No server in the virtual namespace");
+            return;
+        }
+        long length;
+        try {
+            length = Files.size(localFile);
+        } catch (IOException e) {
+            System.out.println("Error reading " + localFile + ": " + e.getMessage());
+            return;
+        }
+        StripedFile previous = readManifest(path);
+        if (previous != null) {
+            deleteChunks(path, previous);
+        }
+        StripedFile striped = new StripedFile(length, chunkSize, servers);
+        for (String server : servers) {
+            createParents(serverPortMap.get(server), StripedFile.chunkPath(path, 0));
+        }
+        long start = System.nanoTime();
+        if (!transferChunks(striped, chunk -> uploadChunk(path, striped, chunk, localFile))) {
+            return;
+        }
+        // The manifest goes where any other file at the path would, on every replica.
+        for (int port : ports(ring.serversFor(path, replicas))) {
+            createParents(port, path);
+            exchange(port, Frame.COMMAND, ("DELETE " + path).getBytes(StandardCharsets.UTF_8));
+            exchange(port, Frame.COMMAND, ("CREATE_FILE " + path).getBytes(StandardCharsets.UTF_8));
+            Frame written = writeLocked(port, path, striped.toBytes());
+            if (written == null || written.status != Frame.STATUS_OK) {
+                System.out.println("Error writing the manifest of " + path
+                        + (written != null ? ": " + written.text() : ""));
+                return;
+            }
+        }
+        System.out.println("Uploaded " + path + ": " + length + " bytes in " + striped.chunks() + " chunk(s) over "
+                + servers.size() + " server(s)" + throughput(length, start));
+    }
+
+    // Downloads a striped file into a local file, all chunks in parallel, each written at its place.
+    private void downloadStriped(String path, Path localFile) {
+        StripedFile striped = readManifest(path);
+        if (striped == null) {
+            System.out.println("Error: Not a striped file - " + path);
+            return;
+        }
+        long start = System.nanoTime();
+        try (FileChannel out = FileChannel.open(localFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (!transferChunks(striped, chunk -> downloadChunk(path, striped, chunk, out))) {
+                return;
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing " + localFile + ": " + e.getMessage());
+            return;
+        }
+        System.out.println("Downloaded " + path + " to " + localFile + ": " + striped.length + " bytes from "
+                + striped.servers.size() + " server(s)" + throughput(striped.length, start));
+    }
+
+    private static String throughput(long bytes, long startNanos) {
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        return String.format(" (%.1f MB/s)", bytes / seconds / (1024 * 1024));
+    }
+
+    /**
+     * Runs the transfer of every chunk, STRIPE_TRANSFERS_PER_SERVER per server at a
+     * time, and returns whether all succeeded; the first failure is printed. Chunks are
+     * handed out in order, so with the round-robin layout every server stays busy.
+     */
+    private boolean transferChunks(StripedFile striped, ChunkTransfer transfer) {
+        ExecutorService pool = Executors.newFixedThreadPool(striped.servers.size() * STRIPE_TRANSFERS_PER_SERVER,
+                task -> {
+                    Thread thread = new Thread(task, "stripe-transfer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            List<CompletableFuture<Void>> chunks = new ArrayList<>();
+            for (int chunk = 0; chunk < striped.chunks(); chunk++) {
+                int index = chunk;
+                chunks.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        transfer.transfer(index);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, pool));
+            }
+            CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).join();
+            return true;
+        } catch (CompletionException e) {
+            System.out.println("Error transferring chunks: " + e.getCause().getMessage());
+            return false;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // CREATE_FILE, OPEN and WRITE are sent back to back; the server handles them in order.
+    private void uploadChunk(String path, StripedFile striped, int chunk, Path localFile) throws IOException {
+        String chunkPath = StripedFile.chunkPath(path, chunk);
+        int port = portOf(striped.server(chunk), path);
+        byte[] content = new byte[(int) striped.chunkLength(chunk)];
+        try (RandomAccessFile in = new RandomAccessFile(localFile.toFile(), "r")) {
+            in.seek((long) chunk * striped.chunkSize);
+            in.readFully(content);
+        }
+        submit(port, Frame.COMMAND, ("CREATE_FILE " + chunkPath).getBytes(StandardCharsets.UTF_8));
+        submit(port, Frame.OPEN, ("OPEN " + chunkPath + " rw").getBytes(StandardCharsets.UTF_8));
+        Frame written = await(submit(port, Frame.WRITE, writePayload(chunkPath, content)));
+        if (written.status != Frame.STATUS_OK) {
+            throw new IOException("Chunk " + chunk + " of " + path + ": " + written.text());
+        }
+    }
+
+    // Only the chunk's own length is read; an older, longer chunk file may have more.
+    private void downloadChunk(String path, StripedFile striped, int chunk, FileChannel out) throws IOException {
+        String chunkPath = StripedFile.chunkPath(path, chunk);
+        int port = portOf(striped.server(chunk), path);
+        long length = striped.chunkLength(chunk);
+        long position = (long) chunk * striped.chunkSize;
+        try (ChunkInputStream stream = openStream(port, "OPEN " + chunkPath + " r 0 " + length, false)) {
+            if (stream == null) {
+                throw new IOException("Chunk " + chunk + " of " + path + " is missing");
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long written = 0;
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                while (data.hasRemaining()) {
+                    written += out.write(data, position + written);
+                }
+            }
+            if (written != length) {
+                throw new IOException("Chunk " + chunk + " of " + path + " is short: " + written + " of " + length);
+            }
+        } finally {
+            submit(port, Frame.COMMAND, ("UNSUBSCRIBE " + chunkPath).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private int portOf(String server, String path) throws IOException {
+        Integer port = serverPortMap.get(server);
+        if (port == null) {
+            throw new IOException("Server " + server + " of " + path + " is not connected");
+        }
+        return port;
+    }
+
+    // The manifest at a virtual path; null if there is no file or it is not a striped one.
+    private StripedFile readManifest(String path) {
+        Integer port = locateRead(path);
+        if (port == null) {
+            return null;
+        }
+        try (ChunkInputStream stream = openStream(port, "OPEN " + path + " r", false)) {
+            if (stream == null) {
+                return null;
+            }
+            byte[] content = stream.length() <= StripedFile.MAX_MANIFEST ? stream.readAllBytes() : null;
+            submit(port, Frame.COMMAND, ("UNSUBSCRIBE " + path).getBytes(StandardCharsets.UTF_8));
+            return content != null ? StripedFile.parse(content) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Deletes the chunks of a striped file and their directories, leaving the manifest.
+    private void deleteChunks(String path, StripedFile striped) {
+        for (int chunk = 0; chunk < striped.chunks(); chunk++) {
+            Integer port = serverPortMap.get(striped.server(chunk));
+            if (port != null) {
+                submit(port, Frame.COMMAND,
+                        ("DELETE " + StripedFile.chunkPath(path, chunk)).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        // Each directory goes after the chunk deletes sent before it on the same connection.
+        for (String server : striped.servers) {
+            Integer port = serverPortMap.get(server);
+            if (port != null) {
+                exchange(port, Frame.COMMAND,
+                        ("DELETE " + path + StripedFile.STRIPES_SUFFIX).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    // The server only takes a WRITE from the holder of the file's write lock, so the file
+    // is opened for writing first; the WRITE releases the lock again.
+    private Frame writeLocked(int port, String path, byte[] content) {
+        Frame opened = exchange(port, Frame.OPEN, ("OPEN " + path + " rw").getBytes(StandardCharsets.UTF_8));
+        if (opened == null || opened.status != Frame.STATUS_OK) {
+            return opened;
+        }
+        return exchange(port, Frame.WRITE, writePayload(path, content));
+    }
+
+    // WRITE payload: the file name (writeUTF) followed by the content.
+    private static byte[] writePayload(String path, byte[] content) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(content.length + 64);
+        try {
+            new DataOutputStream(payload).writeUTF(path);
+            payload.write(content);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Not thrown by a ByteArrayOutputStream.
+        }
+        return payload.toByteArray();
+    }
+
+    // Deletes a path of the virtual namespace wherever it exists, as a directory may be on every server.
+    private void deleteVirtual(String path) {
+        StripedFile striped = readManifest(path);
+        if (striped != null) {
+            deleteChunks(path, striped);
+        }
+        String reply = null;
+        boolean deleted = false;
+        for (String server : ring.servers()) {
+            Frame frame = exchange(serverPortMap.get(server), Frame.COMMAND,
+                    ("DELETE " + path).getBytes(StandardCharsets.UTF_8));
+            if (frame != null && !deleted) {
+                deleted = frame.status == Frame.STATUS_OK;
+                reply = frame.text();
+            }
+        }
+        System.out.println(reply != null ? reply : "Error: No server in the virtual namespace");
+    }
+
+    /**
+     * Keeps the server's lease on our write locks alive while files are open for writing
+     * but nothing else is sent, e.g. while the user edits. On a text connection the
+     * server does not answer a heartbeat, so none lands among the lines of a reply; it
+     * is only kept from going out in the middle of a WRITE's content.
+     */
+    private void startHeartbeat() {
+        timers.scheduleAtFixedRate(this::sendHeartbeats, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendHeartbeats() {
+        if (!filePermissions.containsValue("w") && !filePermissions.containsValue("rw")) {
+            return;
+        }
+        for (Map.Entry<Integer, ConnectionResources> entry : connections.entrySet()) {
+            ConnectionResources resources = entry.getValue();
+            if (resources.binary) {
+                submit(entry.getKey(), Frame.COMMAND, "HEARTBEAT".getBytes(StandardCharsets.UTF_8));
+            } else {
+                synchronized (resources.out) {
+                    resources.out.println("HEARTBEAT");
+                }
+            }
+        }
     }
 
     public void startConnection(String ip, int port, String serverName) {
         try {
             Socket socket = new Socket(ip, port);
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            connections.put(port, new ConnectionResources(socket, out, in));
+            String hello = negotiateBinary(socket, out);
+            if (hello.startsWith("HELLO BINARY OK")) {
+                ConnectionResources resources = new ConnectionResources(socket, out, null);
+                resources.binary = true;
+                resources.deflate = hello.endsWith(" DEFLATE");
+                resources.dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                resources.dataOut = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                connections.put(port, resources);
+                Thread reader = new Thread(() -> readFrames(resources), "frame-reader-" + serverName);
+                reader.setDaemon(true);
+                reader.start();
+            } else {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                ConnectionResources resources = new ConnectionResources(socket, out, in);
+                connections.put(port, resources);
+                Thread reader = new Thread(() -> readLines(resources), "line-reader-" + serverName);
+                reader.setDaemon(true);
+                reader.start();
+            }
             System.out.println("Successfully started connection with server: " + serverName);
         } catch (IOException e) {
             System.out.println("Error starting connection: " + e.getMessage());
         }
     }
 
+    // Asks for the binary protocol with deflated file data and returns the server's answer:
+    // HELLO BINARY OK, optionally followed by DEFLATE, or "Invalid command" from servers that
+    // only speak text. The reply is read byte by byte so no frame data ends up in a reader's buffer.
+    private String negotiateBinary(Socket socket, PrintWriter out) throws IOException {
+        out.println("HELLO BINARY DEFLATE");
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    private boolean isBinary(int port) {
+        ConnectionResources resources = connections.get(port);
+        return resources != null && resources.binary;
+    }
+
+    /**
+     * The only reader of a binary connection. Replies go to the request waiting for
+     * their request id and FILE_UPDATE pushes are applied as they come, so neither can
+     * be taken for the other. When the connection ends every waiting request fails.
+     */
+    private void readFrames(ConnectionResources resources) {
+        IOException cause = new EOFException("Connection closed by server");
+        try {
+            Frame frame;
+            while ((frame = Frame.read(resources.dataIn)) != null) {
+                if ((frame.flags & Frame.FLAG_DEFLATE) != 0) {
+                    frame = frame.inflated();
+                }
+                if (frame.opcode == Frame.FILE_UPDATE) {
+                    handleFileUpdate(frame);
+                    continue;
+                }
+                ReplyListener listener = resources.pending.get(frame.requestId);
+                if (listener != null && listener.onFrame(frame)) {
+                    resources.pending.remove(frame.requestId, listener);
+                }
+            }
+        } catch (IOException e) {
+            if (!resources.socket.isClosed()) {
+                System.out.println("Error reading from server: " + e.getMessage());
+            }
+            cause = e;
+        }
+        synchronized (resources.writeLock) {
+            resources.closed = true;
+        }
+        for (ReplyListener listener : resources.pending.values()) {
+            listener.onClose(cause);
+        }
+        resources.pending.clear();
+    }
+
+    // The listener is registered before the frame goes out, so its reply cannot arrive first.
+    private int sendFrame(ConnectionResources resources, byte opcode, byte[] payload, ReplyListener listener)
+            throws IOException {
+        byte flags = 0;
+        byte[] deflated = resources.deflate && payload.length >= COMPRESS_MIN ? Frame.deflate(payload) : null;
+        if (deflated != null) {
+            payload = deflated;
+            flags = Frame.FLAG_DEFLATE;
+        }
+        synchronized (resources.writeLock) {
+            if (resources.closed) {
+                throw new EOFException("Connection closed by server");
+            }
+            int requestId = resources.nextRequestId++;
+            if (listener != null) {
+                resources.pending.put(requestId, listener);
+            }
+            try {
+                resources.dataOut.write(Frame.header(opcode, requestId, Frame.STATUS_OK, flags, payload.length));
+                resources.dataOut.write(payload);
+                resources.dataOut.flush();
+            } catch (IOException e) {
+                resources.pending.remove(requestId);
+                throw e;
+            }
+            return requestId;
+        }
+    }
+
+    /**
+     * Sends one request frame and returns without waiting for the reply. Any number of
+     * requests can be in flight on one connection; the reader thread matches each reply
+     * to its request by request id.
+     */
+    public CompletableFuture<Frame> submit(int port, byte opcode, byte[] payload) {
+        ConnectionResources resources = connections.get(port);
+        if (resources == null || !resources.binary) {
+            return CompletableFuture.failedFuture(new IOException("No binary connection on port " + port));
+        }
+        SingleReply reply = new SingleReply();
+        try {
+            sendFrame(resources, opcode, payload, reply);
+        } catch (IOException e) {
+            reply.future.completeExceptionally(e);
+        }
+        return reply.future;
+    }
+
+    // Sends one request frame and waits for its reply.
+    private Frame exchange(int port, byte opcode, byte[] payload) {
+        ConnectionResources resources = connections.get(port);
+        if (resources == null || !resources.socket.isConnected()) {
+            System.out.println("No active connection on port " + port);
+            return null;
+        }
+        try {
+            long start = System.nanoTime();
+            Frame reply = submit(port, opcode, payload).get();
+            resources.recordLatency(start);
+            return reply;
+        } catch (ExecutionException e) {
+            System.out.println("Error exchanging frames with server: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Opens a file with a streaming OPEN and returns its contents as an InputStream.
+     * Chunks are fetched as the stream is read, so memory use is bounded by the chunk
+     * size times STREAM_WINDOW whatever the file size. Returns null and prints the
+     * server's message if the file could not be opened. For a conditional OPEN of an
+     * unchanged file the stream is empty and isNotModified() is true.
+     */
+    public ChunkInputStream openStream(int port, String request) throws IOException {
+        return openStream(port, request, true);
+    }
+
+    // Without report the server's message is not printed, for OPENs the user did not ask for.
+    private ChunkInputStream openStream(int port, String request, boolean report) throws IOException {
+        ConnectionResources resources = connections.get(port);
+        if (resources == null || !resources.binary) {
+            throw new IOException("No binary connection on port " + port);
+        }
+        SingleReply first = new SingleReply();
+        long start = System.nanoTime();
+        int requestId = sendFrame(resources, Frame.OPEN_STREAM, request.getBytes(StandardCharsets.UTF_8), first);
+        Frame reply = await(first.future);
+        resources.recordLatency(start);
+        if (reply.status == Frame.STATUS_NOT_MODIFIED) {
+            return new ChunkInputStream(resources, requestId, reply.text());
+        }
+        if (reply.status != Frame.STATUS_OK) {
+            if (report) {
+                System.out.println(reply.text());
+            }
+            return null;
+        }
+        DataInputStream info = new DataInputStream(new ByteArrayInputStream(reply.payload));
+        long length = info.readLong();
+        String version = info.available() > 0 ? info.readUTF() : null; // Older servers send no version.
+        ChunkInputStream stream = new ChunkInputStream(resources, requestId, length, version);
+        // No chunk is sent before the first credit, so none can miss the listener.
+        resources.pending.put(requestId, stream);
+        stream.grant(STREAM_WINDOW);
+        return stream;
+    }
+
+    private static Frame await(CompletableFuture<Frame> reply) throws IOException {
+        try {
+            return reply.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the server");
+        }
+    }
+
+    /** Data of a streaming OPEN, handed over chunk by chunk by the connection's reader thread. */
+    public class ChunkInputStream extends InputStream implements ReplyListener {
+        private final ConnectionResources resources;
+        private final int requestId;
+        private final long length;
+        private final String version;
+        private final boolean notModified;
+        // At most STREAM_WINDOW chunks plus the final one are ever queued.
+        private final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+        private volatile IOException failure;
+        private byte[] chunk = new byte[0];
+        private int offset;
+        private boolean finished;
+        private boolean closed;
+
+        ChunkInputStream(ConnectionResources resources, int requestId, long length, String version) {
+            this.resources = resources;
+            this.requestId = requestId;
+            this.length = length;
+            this.version = version;
+            this.notModified = false;
+        }
+
+        // The server's answer to a conditional OPEN when the cached copy is current.
+        ChunkInputStream(ConnectionResources resources, int requestId, String version) {
+            this.resources = resources;
+            this.requestId = requestId;
+            this.length = 0;
+            this.version = version;
+            this.notModified = true;
+            this.finished = true;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public String version() {
+            return version;
+        }
+
+        public boolean isNotModified() {
+            return notModified;
+        }
+
+        @Override
+        public boolean onFrame(Frame frame) {
+            frames.add(frame);
+            return frame.status != Frame.STATUS_OK;
+        }
+
+        @Override
+        public void onClose(IOException cause) {
+            failure = cause;
+            frames.add(CONNECTION_CLOSED);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (offset == chunk.length && !nextChunk()) {
+                return -1;
+            }
+            int count = Math.min(len, chunk.length - offset);
+            System.arraycopy(chunk, offset, b, off, count);
+            offset += count;
+            return count;
+        }
+
+        private boolean nextChunk() throws IOException {
+            while (!finished) {
+                Frame frame;
+                try {
+                    frame = frames.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a chunk");
+                }
+                if (frame == CONNECTION_CLOSED) {
+                    finished = true;
+                    throw failure;
+                }
+                finished = frame.status != Frame.STATUS_OK;
+                if (finished) {
+                    if (frame.status != Frame.STATUS_END) {
+                        throw new IOException(frame.text());
+                    }
+                } else {
+                    grant(1);
+                }
+                chunk = frame.payload;
+                offset = 0;
+                if (chunk.length > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void grant(int credit) throws IOException {
+            byte[] payload = ByteBuffer.allocate(Integer.BYTES).putInt(credit).array();
+            synchronized (resources.writeLock) {
+                resources.dataOut.write(Frame.header(Frame.CREDIT, requestId, Frame.STATUS_OK, payload.length));
+                resources.dataOut.write(payload);
+                resources.dataOut.flush();
+            }
+        }
+
+        // Closing early cancels the stream and drains the chunks already on their way.
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!finished) {
+                grant(-1);
+                while (nextChunk()) {
+                    offset = chunk.length;
+                }
+            }
+        }
+    }
+
+    // Runs a text command over the binary protocol and prints the reply.
+    private void printCommandReply(int port, String request) {
+        Frame reply = exchange(port, Frame.COMMAND, request.getBytes(StandardCharsets.UTF_8));
+        if (reply != null && reply.payload.length > 0) {
+            System.out.println(reply.text());
+        }
+    }
+
     public void stopConnection() {
         for (int port : connections.keySet()) {
             ConnectionResources resources = connections.get(port);
@@ -73,6 +1302,8 @@ public class FileClient {
                 try {
                     if (resources.in != null)
                         resources.in.close();
+                    if (resources.dataIn != null)
+                        resources.dataIn.close();
                     if (resources.out != null)
                         resources.out.close();
                     if (resources.socket != null)
@@ -97,10 +1328,9 @@ public class FileClient {
     public String getResponse(int port) {
         ConnectionResources resources = connections.get(port);
         if (resources != null && resources.socket.isConnected()) {
-            try {
-                return resources.in.readLine();
-            } catch (IOException e) {
-                System.out.println("Error getting response from server: " + e.getMessage());
+            String line = takeReply(resources);
+            if (line != null) {
+                return line;
             }
         } else {
             System.out.println("No active connection on port " + port);
@@ -108,6 +1338,21 @@ public class FileClient {
         return "Error: either resource is null or socket is not connected";
     }
 
+    // Next reply line of a text connection, or null once the connection is gone.
+    private String takeReply(ConnectionResources resources) {
+        try {
+            String line = resources.replies.take();
+            if (line == CONNECTION_LOST) {
+                resources.replies.add(CONNECTION_LOST); // Every later call fails too.
+                return null;
+            }
+            return line;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
     private Integer getServerPort(String path) {
         String serverName;
         int firstSlashIndex = path.indexOf("/");
@@ -120,43 +1365,49 @@ public class FileClient {
         return serverPortMap.get(serverName);
     }
 
-    private void listenForUpdates(int port) {
-        ConnectionResources resources = connections.get(port);
-        if (resources == null) {
-            System.out.println("No connection resources found for port " + port);
-            return;
-        }
+    /**
+     * The only reader of a text connection. FILE_UPDATE pushes are applied as soon as
+     * they arrive, without polling; every other line is a reply and goes to the reply
+     * queue. The server never writes a push into the middle of a reply.
+     *
+     * A push starts with a line beginning with a single PUSH_MARK. The server doubles
+     * PUSH_MARK at the start of any other line, so file data cannot pass for a push;
+     * the extra mark is dropped here.
+     */
+    private void readLines(ConnectionResources resources) {
         try {
-            StringBuilder message = new StringBuilder();
             String line;
-            while (!Thread.currentThread().isInterrupted()) {
-                if (resources.in.ready()) {
-                    while ((line = resources.in.readLine()) != null) {
-                        message.append(line).append("\n");
-                        if (line.equals("END_OF_DATA")) {
-                            if (message.toString().startsWith("FILE_UPDATE")) {
-                                handleFileUpdate(message.toString());
-                                message = new StringBuilder(); // Reset message for the next update
-                            }
-                        }
-                    }
-                } else {
-                    // If there's nothing to read, sleep a bit
-                    try {
-                        Thread.sleep(100); // Adjust the sleep time as necessary
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt(); // Preserve interruption status
+            while ((line = resources.in.readLine()) != null) {
+                if (!line.startsWith(PUSH_MARK) || line.startsWith(PUSH_MARK + PUSH_MARK)) {
+                    resources.replies.add(unescape(line));
+                    continue;
+                }
+                StringBuilder message = new StringBuilder(line.substring(1)).append("\n");
+                while ((line = resources.in.readLine()) != null) {
+                    message.append(unescape(line)).append("\n");
+                    if (line.equals("END_OF_DATA")) {
                         break;
                     }
                 }
+                handleFileUpdate(message.toString());
             }
         } catch (IOException e) {
-            if (!Thread.currentThread().isInterrupted()) {
-                System.out.println("Error listening for updates: " + e.getMessage());
-            } else {
-                System.out.println("Interrupted during I/O operation.");
+            if (!resources.socket.isClosed()) {
+                System.out.println("Error reading from server: " + e.getMessage());
             }
         }
+        resources.replies.add(CONNECTION_LOST);
+    }
+
+    private static String unescape(String line) {
+        return line.startsWith(PUSH_MARK) ? line.substring(1) : line;
+    }
+
+    private void handleFileUpdate(Frame frame) throws IOException {
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(frame.payload));
+        String fileName = payload.readUTF();
+        applyUpdate(fileName, Arrays.copyOfRange(frame.payload, frame.payload.length - payload.available(),
+                frame.payload.length));
     }
 
     private void handleFileUpdate(String message) {
@@ -175,10 +1426,35 @@ public class FileClient {
             fileContent.append(lines[i]).append("\n");
         }
 
-        fileData.put(fileName, fileContent.toString().trim());
+        applyUpdate(fileName, fileContent.toString().trim().getBytes());
+    }
+
+    private void applyUpdate(String fileName, byte[] content) {
+        openCache.removeFile(fileName); // The push carries no version to revalidate with.
+        if (filePermissions.containsKey(fileName)) {
+            fileData.put(fileName, new PieceTable(content));
+            discardSpill(fileName);
+            System.out.println("\n File " + fileName + " has been updated.");
+            System.out.print("cmd > ");
+        }
+        for (UpdateListener listener : updateListeners.getOrDefault(fileName, Collections.emptyList())) {
+            listener.fileUpdated(fileName, content);
+        }
+    }
 
-        System.out.println("\n File " + fileName + " has been updated.");
-        System.out.print("cmd > ");
+    /**
+     * Registers a callback for pushes of a file. Pushes come for files opened with
+     * permission r until they are closed.
+     */
+    public void addUpdateListener(String fileName, UpdateListener listener) {
+        updateListeners.computeIfAbsent(fileName, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    public void removeUpdateListener(String fileName, UpdateListener listener) {
+        List<UpdateListener> listeners = updateListeners.get(fileName);
+        if (listeners != null) {
+            listeners.remove(listener);
+        }
     }
 
     public void handleFileTransfer(int port, String fileName, String permission) {
@@ -189,54 +1465,70 @@ public class FileClient {
         }
 
         StringBuilder response = new StringBuilder();
-        try {
-            String line;
-            while ((line = resources.in.readLine()) != null) {
-                if ("END_OF_DATA".equals(line)) {
-                    break; // Break the loop when the end-of-data marker is found
-                }
-                if (line.startsWith("Write access denied")) {
-                    System.out.println(line);
-                    return;
-                } else if (line.startsWith("Error:")) {
-                    System.out.println(line);
-                    return;
-                }
-                response.append(line).append("\n");
+        String line;
+        while ((line = takeReply(resources)) != null) {
+            if ("END_OF_DATA".equals(line)) {
+                break; // Break the loop when the end-of-data marker is found
             }
-            fileData.put(fileName, response.toString().trim());
-            filePermissions.put(fileName, permission);
-            System.out.println("File opened: " + fileName);
-        } catch (IOException e) {
-            System.out.println("Error getting response: " + e.getMessage());
+            if (line.startsWith("Write access denied")) {
+                System.out.println(line);
+                return;
+            } else if (line.startsWith("Error:")) {
+                System.out.println(line);
+                return;
+            }
+            response.append(line).append("\n");
         }
-
-        if ("r".equals(permission)) {
-            System.out.println("Listening for updates");
-            startListenForUpdates(fileName, port);
+        if (line == null) {
+            System.out.println("Error getting response: connection closed");
+            return;
         }
+        fileData.put(fileName, new PieceTable(response.toString().trim().getBytes()));
+        filePermissions.put(fileName, permission);
+        System.out.println("File opened: " + fileName);
     }
 
     public void listDirectory(String fullPath) {
+        listDirectory(fullPath, false, false);
+    }
+
+    // With details every entry shows its type, size and modification time; recursive lists the whole tree.
+    public void listDirectory(String fullPath, boolean details, boolean recursive) {
         int firstSlashIndex = fullPath.indexOf("/");
         String serverName = (firstSlashIndex != -1) ? fullPath.substring(0, firstSlashIndex) : fullPath;
         String path = (firstSlashIndex != -1 && fullPath.length() > firstSlashIndex + 1)
                 ? fullPath.substring(firstSlashIndex + 1)
                 : "";
 
-        Integer port = getServerPort(serverName);
-        if (port != null) {
-            sendRequest(port, "LS " + path);
-            String response;
-            while (!(response = getResponse(port)).equals("END_OF_LS")) {
-                System.out.println(response);
-            }
-        } else {
+        if (VIRTUAL_ROOT.equals(serverName)) {
+            listVirtualDirectory(path.isEmpty() ? VIRTUAL_ROOT : VIRTUAL_ROOT + "/" + path, details, recursive);
+            return;
+        }
+        Integer port = getServerPort(serverName);
+        if (port == null) {
             System.out.println("Server not found: " + serverName);
+            return;
+        }
+        Iterator<String> entries = listPages(port, path,
+                (details ? LS_DETAILS : "") + (recursive ? " recursive=true" : ""), true);
+        while (entries.hasNext()) {
+            printLsLine(entries.next(), details);
         }
     }
 
     public void openFile(int port, String fileName, String permission, Long startPosition, Long readLength) {
+        openFile(port, fileName, permission, startPosition, readLength, null);
+    }
+
+    // With waitMillis a write OPEN of a locked range queues on the server for up to that long instead of failing.
+    public void openFile(int port, String fileName, String permission, Long startPosition, Long readLength,
+            Long waitMillis) {
+        openFile(port, fileName, permission, startPosition, readLength, waitMillis, "");
+    }
+
+    // Options are appended to the request as they are, each with a leading space.
+    private void openFile(int port, String fileName, String permission, Long startPosition, Long readLength,
+            Long waitMillis, String options) {
         if (fileName == null) {
             System.out.println("Filename not provided");
             return;
@@ -249,25 +1541,95 @@ public class FileClient {
                 request.append(" ").append(readLength);
             }
         }
+        if (waitMillis != null) {
+            request.append(" wait=").append(waitMillis);
+        }
+        request.append(options);
+        if (isBinary(port)) {
+            openFileBinary(port, fileName, permission, request.toString(), startPosition, readLength);
+            return;
+        }
         sendRequest(port, request.toString());
         handleFileTransfer(port, fileName, permission);
     }
 
-    private void startListenForUpdates(String fileName, int port) {
-        Thread updateListenerThread = new Thread(() -> listenForUpdates(port));
-        updateListenerThread.start();
-        threadMap.put(fileName, updateListenerThread);
+    /**
+     * Opens a file over the binary protocol. A region fetched before, even by an OPEN
+     * that was closed since, is revalidated with a conditional OPEN and only downloaded
+     * again if the server's version changed.
+     */
+    private void openFileBinary(int port, String fileName, String permission, String request, Long startPosition,
+            Long readLength) {
+        String region = startPosition + ":" + readLength;
+        OpenCache.Entry cached = openCache.get(port, fileName, region);
+        if (cached != null) {
+            request += " if-none-match=" + cached.version;
+        }
+        boolean notModified = false;
+        try (ChunkInputStream stream = openStream(port, request)) {
+            if (stream == null) {
+                return;
+            }
+            discardSpill(fileName);
+            if (stream.isNotModified()) {
+                // Cached arrays are never written to; writes only add pieces on top of them.
+                fileData.put(fileName, new PieceTable(cached.content));
+                notModified = true;
+            } else if (stream.length() <= IN_MEMORY_LIMIT) {
+                byte[] content = stream.readAllBytes();
+                fileData.put(fileName, new PieceTable(content));
+                if (stream.version() != null) {
+                    openCache.put(port, fileName, region, stream.version(), content);
+                }
+            } else {
+                openCache.remove(port, fileName);
+                Path spill = Files.createTempFile("dfs-open-", ".tmp");
+                spill.toFile().deleteOnExit();
+                spilledFiles.put(fileName, spill);
+                Files.copy(stream, spill, StandardCopyOption.REPLACE_EXISTING);
+                fileData.remove(fileName);
+            }
+        } catch (IOException e) {
+            System.out.println("Error opening file: " + e.getMessage());
+            return;
+        }
+        filePermissions.put(fileName, permission);
+        dirtyRanges.put(fileName, new DirtyRanges());
+        openOffsets.put(fileName, startPosition != null ? startPosition : 0L);
+        System.out.println("File opened: " + fileName + (notModified ? " (not modified, using cached copy)" : ""));
+    }
+
+    // Drops the temp file holding a large opened file, if there is one.
+    private void discardSpill(String fileName) {
+        Path spill = spilledFiles.remove(fileName);
+        if (spill != null) {
+            try {
+                Files.deleteIfExists(spill);
+            } catch (IOException e) {
+                System.out.println("Could not delete temp file " + spill + ": " + e.getMessage());
+            }
+        }
     }
 
     public void readFile(int port, String fileName) {
-        if (!filePermissions.containsKey(fileName) || !fileData.containsKey(fileName)) {
+        Path spill = spilledFiles.get(fileName);
+        if (!filePermissions.containsKey(fileName) || (!fileData.containsKey(fileName) && spill == null)) {
             System.out.println("File not open or not found: " + fileName);
             return;
         }
         String permission = filePermissions.get(fileName);
         if ("r".equals(permission) || "rw".equals(permission)) {
-            String data = fileData.get(fileName);
-            System.out.println("\n" + data + "\n");
+            try {
+                System.out.println();
+                if (spill != null) {
+                    Files.copy(spill, System.out);
+                } else {
+                    fileData.get(fileName).writeTo(System.out);
+                }
+                System.out.println("\n");
+            } catch (IOException e) {
+                System.out.println("Error reading file: " + e.getMessage());
+            }
         } else {
             System.out.println("Read permission denied for file: " + fileName);
         }
@@ -284,29 +1646,46 @@ public class FileClient {
             return;
         }
 
-        String nowData = fileData.getOrDefault(fileName, "");
-        StringBuilder modifiedData = new StringBuilder();
-
-        if (nowData.length() < filePointer) {
-            modifiedData.append(nowData);
-            for (int i = nowData.length(); i < filePointer; i++) {
-                modifiedData.append(" ");
+        byte[] bytes = newData.replace("\\n", "\n").getBytes();
+        DirtyRanges dirty = dirtyRanges.get(fileName);
+        Path spill = spilledFiles.get(fileName);
+        if (spill != null) {
+            long length = writeSpilled(spill, filePointer, bytes);
+            if (dirty != null) {
+                dirty.add(Math.min(filePointer, length), filePointer + bytes.length);
             }
-        } else {
-            modifiedData.append(nowData.substring(0, filePointer));
+            System.out.println("Data added to file: " + fileName + " at position " + filePointer);
+            return;
         }
 
-        newData = newData.replace("\\n", "\n");
-        modifiedData.append(newData);
-
-        if (nowData.length() > filePointer + newData.length()) {
-            modifiedData.append(nowData.substring(filePointer + newData.length()));
+        PieceTable content = fileData.computeIfAbsent(fileName, k -> new PieceTable(new byte[0]));
+        if (dirty != null) {
+            // Padding written past the old end is part of the change.
+            dirty.add(Math.min(filePointer, content.length()), filePointer + bytes.length);
         }
-
-        fileData.put(fileName, modifiedData.toString());
+        content.write(filePointer, bytes);
         System.out.println("Data added to file: " + fileName + " at position " + filePointer);
     }
 
+    // Large files are edited in place in their temp file. Returns the length before the write.
+    private long writeSpilled(Path spill, int filePointer, byte[] bytes) {
+        try (RandomAccessFile file = new RandomAccessFile(spill.toFile(), "rw")) {
+            long length = file.length();
+            if (length < filePointer) {
+                byte[] padding = new byte[(int) (filePointer - length)];
+                Arrays.fill(padding, (byte) ' ');
+                file.seek(length);
+                file.write(padding);
+            }
+            file.seek(filePointer);
+            file.write(bytes);
+            return length;
+        } catch (IOException e) {
+            System.out.println("Error writing to temp file: " + e.getMessage());
+            return filePointer;
+        }
+    }
+
     public void closeFile(int port, String fileName) {
         if (!filePermissions.containsKey(fileName)) {
             System.out.println("File not open: " + fileName);
@@ -315,21 +1694,100 @@ public class FileClient {
         String permission = filePermissions.get(fileName);
         if ("w".equals(permission) || "rw".equals(permission)) {
             System.out.println("close file");
-            String content = fileData.get(fileName);
-            sendRequest(port, "WRITE " + fileName);
-            sendRequest(port, content);
-            sendRequest(port, "END_OF_DATA");
-            System.out.println(getResponse(port));
+            if (isBinary(port)) {
+                patchFileBinary(port, fileName);
+                openCache.remove(port, fileName); // The patch gave the file a new version.
+            } else {
+                sendWrite(port, fileName);
+                System.out.println(getResponse(port));
+            }
         }
-        if ("r".equals(permission)) {
-            Thread threadToStop = threadMap.get(fileName);
-            if (threadToStop != null) {
-                threadToStop.interrupt();
-                threadMap.remove(fileName);
+        if ("r".equals(permission) && isBinary(port)) {
+            // Binary subscriptions last until cancelled; text ones end with the next push.
+            Frame reply = exchange(port, Frame.COMMAND, ("UNSUBSCRIBE " + fileName).getBytes(StandardCharsets.UTF_8));
+            if (reply != null && reply.status != Frame.STATUS_OK) {
+                System.out.println(reply.text());
             }
         }
         fileData.remove(fileName);
         filePermissions.remove(fileName);
+        dirtyRanges.remove(fileName);
+        openOffsets.remove(fileName);
+        discardSpill(fileName);
+    }
+
+    // WRITE, the content and END_OF_DATA, with no heartbeat slipping in between.
+    private void sendWrite(int port, String fileName) {
+        ConnectionResources resources = connections.get(port);
+        if (resources == null) {
+            System.out.println("No active connection on port " + port);
+            return;
+        }
+        synchronized (resources.out) {
+            sendRequest(port, "WRITE " + fileName);
+            sendContent(port, fileData.get(fileName));
+            sendRequest(port, "END_OF_DATA");
+        }
+    }
+
+    // Writes the content of an open file to a text connection piece by piece, as one line.
+    private void sendContent(int port, PieceTable content) {
+        ConnectionResources resources = connections.get(port);
+        if (resources == null || !resources.socket.isConnected()) {
+            System.out.println("No active connection on port " + port);
+            return;
+        }
+        try {
+            // The socket is shared with the PrintWriter, which flushes on every println.
+            OutputStream socketOut = new BufferedOutputStream(resources.socket.getOutputStream(), 64 * 1024);
+            content.writeTo(socketOut);
+            socketOut.write('\n');
+            socketOut.flush();
+        } catch (IOException e) {
+            System.out.println("Error sending file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Uploads only the ranges changed since OPEN as a PATCH. Sent even when nothing
+     * changed, since it is also what releases the server's write lock.
+     */
+    private void patchFileBinary(int port, String fileName) {
+        DirtyRanges dirty = dirtyRanges.getOrDefault(fileName, new DirtyRanges());
+        long base = openOffsets.getOrDefault(fileName, 0L);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        try {
+            data.writeUTF(fileName);
+            data.writeInt(dirty.size());
+            for (Map.Entry<Long, Long> range : dirty.entries()) {
+                byte[] bytes = readLocal(fileName, range.getKey(), range.getValue());
+                data.writeLong(base + range.getKey());
+                data.writeInt(bytes.length);
+                data.write(bytes);
+            }
+        } catch (IOException e) {
+            System.out.println("Error preparing write: " + e.getMessage());
+            return;
+        }
+        Frame reply = exchange(port, Frame.PATCH, payload.toByteArray());
+        if (reply != null) {
+            System.out.println(reply.text());
+        }
+    }
+
+    // Bytes [start, end) of the local copy of an open file.
+    private byte[] readLocal(String fileName, long start, long end) throws IOException {
+        Path spill = spilledFiles.get(fileName);
+        if (spill == null) {
+            return fileData.get(fileName).read(start, end);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(spill.toFile(), "r")) {
+            byte[] bytes = new byte[(int) (end - start)];
+            file.seek(start);
+            file.readFully(bytes);
+            return bytes;
+        }
     }
 
     public static String[] parseFilePath(String filePath) {
@@ -351,9 +1809,31 @@ public class FileClient {
         return new String[] { serverName, fileName };
     }
 
+    /**
+     * Options, each as --name=value:
+     * --replicas=N      copies of each file of the virtual namespace (default 1)
+     * --write-quorum=W  copies a write needs before it succeeds (default: a majority)
+     */
     public static void main(String[] args) throws IOException {
-        System.out.println("Initiating connection with the server...");
         FileClient client = new FileClient();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            try {
+                switch (option[0]) {
+                    case "--replicas":
+                        client.replicas = Math.max(1, Integer.parseInt(option[1]));
+                        break;
+                    case "--write-quorum":
+                        client.writeQuorum = Integer.parseInt(option[1]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid option: " + arg, e);
+            }
+        }
+        System.out.println("Initiating connection with the server...");
         client.connectToServers("./serverList.txt");
 
         try (BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in))) {
@@ -379,6 +1859,10 @@ public class FileClient {
             System.out.println("Filename not provided or empty.");
             return;
         }
+        if (isBinary(port)) {
+            printCommandReply(port, "CREATE_FILE " + fileName);
+            return;
+        }
         sendRequest(port, "CREATE_FILE " + fileName);
         System.out.println(getResponse(port));
     }
@@ -388,6 +1872,10 @@ public class FileClient {
             System.out.println("Directory name not provided or empty.");
             return;
         }
+        if (isBinary(port)) {
+            printCommandReply(port, "CREATE_DIR " + dirName);
+            return;
+        }
         sendRequest(port, "CREATE_DIR " + dirName);
         System.out.println(getResponse(port));
     }
@@ -397,10 +1885,41 @@ public class FileClient {
             System.out.println("File name not provided or empty.");
             return;
         }
+        if (isBinary(port)) {
+            printCommandReply(port, "DELETE " + name);
+            return;
+        }
         sendRequest(port, "DELETE " + name);
         System.out.println(getResponse(port));
     }
 
+    // Prints the server's block cache counters.
+    public void showStats(int port) {
+        if (isBinary(port)) {
+            printCommandReply(port, "STATS");
+            return;
+        }
+        sendRequest(port, "STATS");
+        System.out.println(getResponse(port));
+    }
+
+    // A byte count with an optional k, m or g suffix, as in the server's options.
+    static long parseSize(String value) {
+        String digits = value.toLowerCase();
+        long unit = 1;
+        if (digits.endsWith("k")) {
+            unit = 1024;
+        } else if (digits.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (digits.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        return Long.parseLong(digits) * unit;
+    }
+
     private static void handleUserInput(String userInput, FileClient client) {
         String[] initialParts = userInput.split(" ", 3);
         if (initialParts.length < 2) {
@@ -413,9 +1932,13 @@ public class FileClient {
         String serverName = filePathParts[0];
         String fileName = filePathParts[1];
 
-        Integer port = client.serverPortMap.get(serverName);
+        boolean virtual = VIRTUAL_ROOT.equals(serverName);
+        if (virtual) {
+            fileName = fileName.isEmpty() ? VIRTUAL_ROOT : VIRTUAL_ROOT + "/" + fileName;
+        }
+        Integer port = virtual ? client.locate(fileName) : client.serverPortMap.get(serverName);
         if (port == null) {
-            System.out.println("Server not found: " + serverName);
+            System.out.println(virtual ? "No server in the virtual namespace" : "Server not found: " + serverName);
             return;
         }
 
@@ -447,38 +1970,104 @@ public class FileClient {
                 String permission = openParts[0];
                 Long startPosition = null;
                 Long readLength = null;
+                Long waitMillis = null;
                 if (openParts.length > 1) {
-                    String[] rangeParts = openParts[1].split(" ");
+                    List<String> rangeParts = new ArrayList<>();
+                    String waitOption = null;
+                    for (String token : openParts[1].split(" ")) {
+                        if (token.startsWith("wait=")) {
+                            waitOption = token.substring("wait=".length());
+                        } else if (!token.isEmpty()) {
+                            rangeParts.add(token);
+                        }
+                    }
                     try {
-                        startPosition = Long.parseLong(rangeParts[0]);
-                        if (rangeParts.length > 1) {
-                            readLength = Long.parseLong(rangeParts[1]);
+                        if (waitOption != null) {
+                            waitMillis = Long.parseLong(waitOption);
+                        }
+                        if (!rangeParts.isEmpty()) {
+                            startPosition = Long.parseLong(rangeParts.get(0));
+                        }
+                        if (rangeParts.size() > 1) {
+                            readLength = Long.parseLong(rangeParts.get(1));
                         }
                     } catch (NumberFormatException e) {
-                        System.out.println("Invalid start position or read length: " + e.getMessage());
+                        System.out.println("Invalid start position, read length or wait time: " + e.getMessage());
                         break;
                     }
                 }
-                client.openFile(port, fileName, permission, startPosition, readLength);
+                if (!virtual) {
+                    client.openFile(port, fileName, permission, startPosition, readLength, waitMillis);
+                } else if ("r".equals(permission)) {
+                    // The replica picked for the read holds the subscription, so CLOSE has to go there too.
+                    port = client.locateRead(fileName);
+                    client.openFile(port, fileName, permission, startPosition, readLength, waitMillis);
+                } else {
+                    client.openFile(port, fileName, permission, startPosition, readLength, waitMillis,
+                            client.replicationOptions(fileName, port));
+                }
+                if (virtual && client.filePermissions.containsKey(fileName)) {
+                    client.openPorts.put(fileName, port);
+                }
                 break;
             case "READ":
                 client.readFile(port, fileName);
                 break;
             case "CLOSE":
                 client.closeFile(port, fileName);
+                client.openPorts.remove(fileName);
                 break;
             case "CREATE_FILE":
-                client.createFile(port, fileName);
+                if (virtual) {
+                    client.createVirtualFile(fileName);
+                } else {
+                    client.createFile(port, fileName);
+                }
                 break;
             case "CREATE_DIR":
-                client.createDirectory(port, fileName);
+                if (virtual) {
+                    client.createVirtualDirectory(fileName);
+                } else {
+                    client.createDirectory(port, fileName);
+                }
                 break;
             case "DELETE":
-                client.deleteFile(port, fileName);
+                if (virtual) {
+                    client.deleteVirtual(fileName);
+                } else {
+                    client.deleteFile(port, fileName);
+                }
+                break;
+            case "UPLOAD":
+            case "DOWNLOAD":
+                if (!virtual || initialParts.length < 3) {
+                    System.out.println("Invalid Command. Usage: UPLOAD " + VIRTUAL_ROOT
+                            + "/[filename] [localFile] [chunkSize], DOWNLOAD " + VIRTUAL_ROOT + "/[filename] [localFile]");
+                    return;
+                }
+                String[] transferParts = initialParts[2].split(" ");
+                if ("DOWNLOAD".equals(command)) {
+                    client.downloadStriped(fileName, Paths.get(transferParts[0]));
+                    break;
+                }
+                try {
+                    long chunkSize = transferParts.length > 1 ? parseSize(transferParts[1]) : STRIPE_CHUNK;
+                    if (chunkSize <= 0 || chunkSize > Integer.MAX_VALUE - 64 * 1024) {
+                        throw new NumberFormatException(transferParts[1]);
+                    }
+                    client.uploadStriped(fileName, Paths.get(transferParts[0]), chunkSize);
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid chunk size: " + transferParts[1]);
+                }
                 break;
             case "LS":
                 String path = initialParts.length > 1 ? initialParts[1] : "";
-                client.listDirectory(path);
+                List<String> flags = initialParts.length > 2 ? Arrays.asList(initialParts[2].split(" "))
+                        : Collections.emptyList();
+                client.listDirectory(path, flags.contains("-l"), flags.contains("-R"));
+                break;
+            case "STATS":
+                client.showStats(port);
                 break;
             default:
                 System.out.println("Invalid Command");
@@ -486,4 +2075,436 @@ public class FileClient {
         }
     }
 
-}
\ No newline at end of file
+}
+
+/**
+ * Frame of the binary protocol, see the server's Frame class for the layout.
+ */
+class Frame {
+    static final int HEADER_SIZE = 15;
+
+    static final byte COMMAND = 1;
+    static final byte OPEN = 2;
+    static final byte WRITE = 3;
+    static final byte FILE_UPDATE = 4;
+    static final byte OPEN_STREAM = 5;
+    static final byte CHUNK = 6;
+    static final byte CREDIT = 7;
+    static final byte PATCH = 8;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final byte STATUS_DENIED = 2;
+    static final byte STATUS_END = 3;
+    static final byte STATUS_NOT_MODIFIED = 4;
+
+    static final byte FLAG_DEFLATE = 1;
+
+    final byte opcode;
+    final int requestId;
+    final byte status;
+    final byte flags;
+    final byte[] payload;
+
+    Frame(byte opcode, int requestId, byte status, byte flags, byte[] payload) {
+        this.opcode = opcode;
+        this.requestId = requestId;
+        this.status = status;
+        this.flags = flags;
+        this.payload = payload;
+    }
+
+    String text() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    static byte[] header(byte opcode, int requestId, byte status, long length) {
+        return header(opcode, requestId, status, (byte) 0, length);
+    }
+
+    static byte[] header(byte opcode, int requestId, byte status, byte flags, long length) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(opcode).putInt(requestId).put(status).put(flags).putLong(length);
+        return header.array();
+    }
+
+    // Null if deflating does not make the data smaller.
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+                if (deflated.size() >= data.length) {
+                    return null;
+                }
+            }
+            return deflated.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // The same frame with its payload inflated and the flag cleared.
+    Frame inflated() throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buffer = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflated payload");
+                }
+                inflated.write(buffer, 0, count);
+            }
+            return new Frame(opcode, requestId, status, (byte) (flags & ~FLAG_DEFLATE), inflated.toByteArray());
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid deflated payload: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Returns null when the peer closed the connection between frames.
+    static Frame read(DataInputStream in) throws IOException {
+        int opcode = in.read();
+        if (opcode == -1) {
+            return null;
+        }
+        int requestId = in.readInt();
+        byte status = in.readByte();
+        byte flags = in.readByte();
+        long length = in.readLong();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        return new Frame((byte) opcode, requestId, status, flags, payload);
+    }
+}
+
+/**
+ * Byte ranges of an open file changed since it was fetched, kept as start -> end
+ * (exclusive) and merged when they overlap or touch.
+ */
+class DirtyRanges {
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    void add(long start, long end) {
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+        }
+        ranges.put(start, end);
+    }
+
+    int size() {
+        return ranges.size();
+    }
+
+    Iterable<Map.Entry<Long, Long>> entries() {
+        return ranges.entrySet();
+    }
+}
+
+/**
+ * Contents of opened files with the server's version of each, kept after CLOSE so the
+ * next OPEN of the same region can be a conditional one. Keyed by server port and
+ * path; least recently used entries go once the total size passes the limit.
+ */
+class OpenCache {
+    static class Entry {
+        final String region;
+        final String version;
+        final byte[] content;
+
+        Entry(String region, String version, byte[] content) {
+            this.region = region;
+            this.version = version;
+            this.content = content;
+        }
+    }
+
+    private final long limit;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    OpenCache(long limit) {
+        this.limit = limit;
+    }
+
+    synchronized Entry get(int port, String fileName, String region) {
+        Entry entry = entries.get(port + "/" + fileName);
+        return entry != null && entry.region.equals(region) ? entry : null;
+    }
+
+    synchronized void put(int port, String fileName, String region, String version, byte[] content) {
+        remove(port, fileName);
+        if (content.length > limit) {
+            return;
+        }
+        entries.put(port + "/" + fileName, new Entry(region, version, content));
+        size += content.length;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (size > limit) {
+            size -= eldest.next().content.length;
+            eldest.remove();
+        }
+    }
+
+    synchronized void remove(int port, String fileName) {
+        Entry entry = entries.remove(port + "/" + fileName);
+        if (entry != null) {
+            size -= entry.content.length;
+        }
+    }
+
+    // Drops the file on every server.
+    synchronized void removeFile(String fileName) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            String key = entry.getKey();
+            if (key.substring(key.indexOf('/') + 1).equals(fileName)) {
+                size -= entry.getValue().content.length;
+                it.remove();
+            }
+        }
+    }
+}
+
+/**
+ * Contents of an open file as pieces of the bytes fetched at OPEN and of the bytes of
+ * each write since, kept by their offset in the file. A write splits at most two pieces
+ * and replaces the ones it covers, so it costs O(log pieces) whatever the file size; the
+ * arrays the pieces point into are never written to.
+ */
+class PieceTable {
+    private static class Piece {
+        final byte[] buffer;
+        final int offset;
+        final int length;
+
+        Piece(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final TreeMap<Long, Piece> pieces = new TreeMap<>();
+    private long length;
+
+    PieceTable(byte[] content) {
+        if (content.length > 0) {
+            pieces.put(0L, new Piece(content, 0, content.length));
+        }
+        length = content.length;
+    }
+
+    synchronized long length() {
+        return length;
+    }
+
+    // Overwrites [position, position + bytes.length); writing past the end pads the gap with spaces.
+    synchronized void write(long position, byte[] bytes) {
+        if (position > length) {
+            byte[] padding = new byte[(int) (position - length)];
+            Arrays.fill(padding, (byte) ' ');
+            pieces.put(length, new Piece(padding, 0, padding.length));
+            length = position;
+        }
+        if (bytes.length == 0) {
+            return;
+        }
+        long end = position + bytes.length;
+        split(position);
+        split(end);
+        pieces.subMap(position, end).clear();
+        pieces.put(position, new Piece(bytes, 0, bytes.length));
+        length = Math.max(length, end);
+    }
+
+    // Cuts the piece that spans position in two, so that one starts there.
+    private void split(long position) {
+        Map.Entry<Long, Piece> entry = pieces.floorEntry(position);
+        if (entry == null || entry.getKey() == position) {
+            return;
+        }
+        Piece piece = entry.getValue();
+        int head = (int) (position - entry.getKey());
+        if (head >= piece.length) {
+            return;
+        }
+        pieces.put(entry.getKey(), new Piece(piece.buffer, piece.offset, head));
+        pieces.put(position, new Piece(piece.buffer, piece.offset + head, piece.length - head));
+    }
+
+    // Bytes [start, end), which must lie within the content.
+    synchronized byte[] read(long start, long end) {
+        byte[] bytes = new byte[(int) (end - start)];
+        Long first = pieces.floorKey(start);
+        for (Map.Entry<Long, Piece> entry : pieces.tailMap(first != null ? first : start, true).entrySet()) {
+            long pieceStart = entry.getKey();
+            if (pieceStart >= end) {
+                break;
+            }
+            Piece piece = entry.getValue();
+            long from = Math.max(start, pieceStart);
+            long to = Math.min(end, pieceStart + piece.length);
+            if (from < to) {
+                System.arraycopy(piece.buffer, piece.offset + (int) (from - pieceStart), bytes, (int) (from - start),
+                        (int) (to - from));
+            }
+        }
+        return bytes;
+    }
+
+    // Streams the content without assembling it in one array.
+    synchronized void writeTo(OutputStream out) throws IOException {
+        for (Piece piece : pieces.values()) {
+            out.write(piece.buffer, piece.offset, piece.length);
+        }
+    }
+}
+
+/**
+ * Manifest of a striped file, kept as a small text file at the file's path. Chunk i of
+ * the file is the file path.stripes/i on server i mod servers.size(), so every server
+ * holds an equal share and a read can fetch from all of them at once.
+ */
+class StripedFile {
+    static final String STRIPES_SUFFIX = ".stripes";
+    // Larger files at a path are not taken for a manifest without reading them.
+    static final int MAX_MANIFEST = 64 * 1024;
+    private static final String MAGIC = "STRIPED 1";
+
+    final long length;
+    final long chunkSize;
+    final List<String> servers;
+
+    StripedFile(long length, long chunkSize, List<String> servers) {
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.servers = servers;
+    }
+
+    int chunks() {
+        return (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    String server(int chunk) {
+        return servers.get(chunk % servers.size());
+    }
+
+    long chunkLength(int chunk) {
+        return Math.min(chunkSize, length - (long) chunk * chunkSize);
+    }
+
+    static String chunkPath(String path, int chunk) {
+        return path + STRIPES_SUFFIX + "/" + chunk;
+    }
+
+    byte[] toBytes() {
+        return (MAGIC + "\nlength " + length + "\nchunk-size " + chunkSize + "\nservers " + String.join(" ", servers)
+                + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Null if the content is not a manifest.
+    static StripedFile parse(byte[] content) {
+        String[] lines = new String(content, StandardCharsets.UTF_8).split("\n");
+        if (lines.length < 4 || !MAGIC.equals(lines[0]) || !lines[1].startsWith("length ")
+                || !lines[2].startsWith("chunk-size ") || !lines[3].startsWith("servers ")) {
+            return null;
+        }
+        try {
+            long length = Long.parseLong(lines[1].substring("length ".length()));
+            long chunkSize = Long.parseLong(lines[2].substring("chunk-size ".length()));
+            List<String> servers = Arrays.asList(lines[3].substring("servers ".length()).split(" "));
+            return chunkSize > 0 && length >= 0 ? new StripedFile(length, chunkSize, servers) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
+
+/**
+ * Consistent hash ring of the virtual namespace. Every server is placed at
+ * VIRTUAL_NODES points on the ring, and a path belongs to the server of the first point
+ * at or after the path's own hash. Adding a server only takes over the arcs in front of
+ * its points, about 1/N of all paths for the Nth server; no other path changes owner.
+ */
+class HashRing {
+    static final int VIRTUAL_NODES = 160;
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    private final List<String> servers;
+
+    HashRing(Collection<String> servers) {
+        this.servers = new ArrayList<>(servers);
+        for (String server : servers) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points.put(hash(server + "#" + i), server);
+            }
+        }
+    }
+
+    List<String> servers() {
+        return servers;
+    }
+
+    // The first count distinct servers clockwise from the path; fewer if the ring has fewer.
+    List<String> serversFor(String path, int count) {
+        List<String> found = new ArrayList<>();
+        if (points.isEmpty()) {
+            return found;
+        }
+        Iterator<String> clockwise = points.tailMap(hash(path)).values().iterator();
+        boolean wrapped = false;
+        while (found.size() < Math.min(count, servers.size())) {
+            if (!clockwise.hasNext()) {
+                if (wrapped) {
+                    break;
+                }
+                clockwise = points.values().iterator();
+                wrapped = true;
+            }
+            String server = clockwise.next();
+            if (!found.contains(server)) {
+                found.add(server);
+            }
+        }
+        return found;
+    }
+
+    // Null if the ring has no servers.
+    String serverFor(String path) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(path));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    // First eight bytes of the MD5 digest: spread well, and the same in every client.
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required of every JDK", e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that a server holds many idle connections at once, 50,000 by default, and still
+ * answers on every one of them: it opens them all, then sends STATS on each and waits
+ * for the reply. Reports the time to connect and the time for the round over all
+ * connections. The server is started separately, so each side has its own file
+ * descriptors; both need a limit above the connection count (ulimit -n).
+ *
+ * Connections are spread over the loopback addresses 127.0.0.1, 127.0.0.2, ..., since
+ * a single source address runs out of ephemeral ports before 50,000.
+ *
+ * Build and run from the repository root, with the server running:
+ *   javac -d out bench/ConnectionsBenchmark.java
+ *   java -cp out ConnectionsBenchmark [connections] [port]
+ */
+public class ConnectionsBenchmark {
+    private static final int PER_SOURCE_ADDRESS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 6666;
+
+        List<Connection> connections = new ArrayList<>(count);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                connections.add(new Connection("127.0.0." + (1 + i / PER_SOURCE_ADDRESS), port));
+            }
+            long connected = System.nanoTime();
+            System.out.printf("Opened %d connections in %.1f s%n", count, (connected - start) / 1e9);
+
+            // Send on all of them first, so the server has every request in flight at once.
+            for (Connection connection : connections) {
+                connection.out.println("STATS");
+            }
+            for (Connection connection : connections) {
+                String reply = connection.in.readLine();
+                if (reply == null || reply.startsWith("Error")) {
+                    throw new IOException("No STATS reply on connection " + connections.indexOf(connection)
+                            + ": " + reply);
+                }
+            }
+            System.out.printf("Answered STATS on all %d connections in %.1f s%n", count,
+                    (System.nanoTime() - connected) / 1e9);
+        } finally {
+            for (Connection connection : connections) {
+                connection.socket.close();
+            }
+        }
+    }
+
+    /** One idle text connection. */
+    private static class Connection {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+
+        Connection(String sourceAddress, int port) throws IOException {
+            socket = new Socket();
+            socket.bind(new InetSocketAddress(sourceAddress, 0));
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FILE_UPDATE fan-out on one hot file with 1, 100 and 1,000 subscribed readers:
+ * the time from a WRITE until every reader has the new content, and the bytes the
+ * server allocates per update. The server runs in-process; readers use the text protocol.
+ *
+ * Build and run from the repository root:
+ *   javac -d out serverA/FileServerA.java bench/FanOutBenchmark.java
+ *   java -cp out FanOutBenchmark [fileSizeKB] [rounds] [engine]
+ */
+public class FanOutBenchmark {
+    private static final int PORT = 7200;
+
+    public static void main(String[] args) throws Exception {
+        int sizeKb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String engine = args.length > 2 ? args[2] : "threads";
+
+        File hotFile = File.createTempFile("fan-out-benchmark", ".txt");
+        hotFile.deleteOnExit();
+        String content = "x".repeat(sizeKb * 1024 - 1);
+        Files.writeString(hotFile.toPath(), content);
+
+        try (FileServerA server = new FileServerA(PORT, new String[] { "--engine=" + engine })) {
+            Thread serverThread = new Thread(server::start, "benchmark-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            System.out.printf("%12s %14s %20s%n", "subscribers", "fan-out ms", "server alloc/update KB");
+            for (int subscribers : new int[] { 1, 100, 1000 }) {
+                run(hotFile.getAbsolutePath(), content, subscribers, rounds);
+            }
+        }
+    }
+
+    private static void run(String path, String content, int subscribers, int rounds) throws Exception {
+        List<Reader> readers = new ArrayList<>();
+        for (int i = 0; i < subscribers; i++) {
+            readers.add(new Reader(path));
+        }
+        try (Socket writerSocket = new Socket("127.0.0.1", PORT)) {
+            PrintWriter writer = new PrintWriter(writerSocket.getOutputStream(), true);
+            BufferedReader writerIn = new BufferedReader(new InputStreamReader(writerSocket.getInputStream()));
+
+            long totalNanos = 0;
+            long totalAllocated = 0;
+            for (int round = 0; round < rounds; round++) {
+                // Registrations are one-shot, so every round subscribes again.
+                for (Reader reader : readers) {
+                    reader.subscribe();
+                }
+                writer.println("OPEN " + path + " rw");
+                readUntil(writerIn, "END_OF_DATA");
+
+                CountDownLatch delivered = new CountDownLatch(subscribers);
+                for (Reader reader : readers) {
+                    reader.awaitUpdate(delivered);
+                }
+                Set<Long> benchmarkThreads = benchmarkThreadIds(readers);
+                long allocated = serverAllocatedBytes(benchmarkThreads);
+                long start = System.nanoTime();
+                writer.println("WRITE " + path);
+                writer.println(content);
+                writer.println("END_OF_DATA");
+                writerIn.readLine();
+                if (!delivered.await(60, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Updates were not delivered to every reader");
+                }
+                totalNanos += System.nanoTime() - start;
+                totalAllocated += serverAllocatedBytes(benchmarkThreads) - allocated;
+            }
+            System.out.printf("%12d %14.2f %20d%n", subscribers, totalNanos / 1e6 / rounds,
+                    totalAllocated / rounds / 1024);
+        } finally {
+            for (Reader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void readUntil(BufferedReader in, String sentinel) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null && !line.equals(sentinel)) {
+            if (line.startsWith("Error") || line.startsWith("Write access denied")) {
+                throw new IOException(line);
+            }
+        }
+    }
+
+    private static Set<Long> benchmarkThreadIds(List<Reader> readers) {
+        Set<Long> ids = new HashSet<>();
+        ids.add(Thread.currentThread().getId());
+        for (Reader reader : readers) {
+            if (reader.thread != null) {
+                ids.add(reader.thread.getId());
+            }
+        }
+        return ids;
+    }
+
+    private static long serverAllocatedBytes(Set<Long> excluded) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (!excluded.contains(ids[i]) && bytes[i] > 0) {
+                total += bytes[i];
+            }
+        }
+        return total;
+    }
+
+    /** One subscribed reader connection. */
+    private static class Reader {
+        private final String path;
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+        private Thread thread;
+
+        Reader(String path) throws IOException {
+            this.path = path;
+            this.socket = new Socket("127.0.0.1", PORT);
+            this.out = new PrintWriter(socket.getOutputStream(), true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        }
+
+        void subscribe() throws IOException {
+            out.println("OPEN " + path + " r");
+            readUntil(in, "END_OF_DATA");
+        }
+
+        void awaitUpdate(CountDownLatch delivered) {
+            thread = new Thread(() -> {
+                try {
+                    readUntil(in, "END_OF_DATA");
+                    delivered.countDown();
+                } catch (IOException e) {
+                    System.out.println("Reader failed: " + e.getMessage());
+                }
+            });
+            thread.start();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
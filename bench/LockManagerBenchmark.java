@@ -0,0 +1,91 @@
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Measures LockManager throughput from 1 to 64 threads. One operation is a tryLock /
+ * unlock pair followed by an addReadClient / removeReadClient pair, on a path of its own
+ * per thread (disjoint) or on one of four paths shared by all threads (overlapping).
+ * The calls go straight to the LockManager, so the figures are its own and not the
+ * protocol's.
+ *
+ * Build and run from the repository root:
+ *   javac -d out serverA/FileServerA.java bench/LockManagerBenchmark.java
+ *   java -cp out LockManagerBenchmark [millisPerRun]
+ */
+// LockManager and the classes around it are auxiliary classes of FileServerA.java; they
+// stay out of the method signatures below, where javac would warn regardless.
+@SuppressWarnings("auxiliaryclass")
+public class LockManagerBenchmark {
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+    private static final int SHARED_PATHS = 4;
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+
+        LockManager lockManager = new LockManager(Runnable::run, null, null, 0, false);
+        ServerContext context = new ServerContext(new ServerOptions(), lockManager, null, null, null,
+                new FileVersions(), new WriteAheadLog(), null);
+
+        // The loop of one thread: its own connection, on its own path or a shared one.
+        BiFunction<Integer, Boolean, Runnable> operation = (thread, overlapping) -> {
+            ClientHandler client = new ClientHandler((Socket) null, context);
+            String path = overlapping ? "/bench/shared-" + (thread % SHARED_PATHS) : "/bench/file-" + thread;
+            return () -> {
+                if (lockManager.tryLock(path, client)) {
+                    lockManager.unlock(path, client);
+                }
+                lockManager.addReadClient(path, client);
+                lockManager.removeReadClient(path, client);
+            };
+        };
+
+        run(operation, 4, false, millis / 4); // Warm-up.
+        run(operation, 4, true, millis / 4);
+
+        System.out.printf("Available processors: %d%n", Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %18s %18s%n", "threads", "disjoint ops/s", "overlapping ops/s");
+        for (int threads : THREADS) {
+            double disjoint = run(operation, threads, false, millis);
+            double overlapping = run(operation, threads, true, millis);
+            System.out.printf("%8d %18.0f %18.0f%n", threads, disjoint, overlapping);
+        }
+    }
+
+    private static double run(BiFunction<Integer, Boolean, Runnable> operation, int threads, boolean overlapping,
+            long millis) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        LongAdder operations = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        AtomicBoolean stop = new AtomicBoolean();
+
+        for (int i = 0; i < threads; i++) {
+            Runnable step = operation.apply(i, overlapping);
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long count = 0;
+                while (!stop.get()) {
+                    step.run();
+                    count++;
+                }
+                operations.add(count);
+            });
+            workers[i].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() / ((System.nanoTime() - begin) / 1e9);
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures OPEN throughput and GC pressure of the zero-copy path (FileChannel.transferTo)
+ * against the buffered copy path, for both protocols and both engines. The server runs
+ * in-process so its allocations can be counted per thread. Text OPENs are always copied,
+ * since their lines are escaped on the way (see ClientHandler.escapeLines), so the text
+ * rows show the cost of that copy whatever --zero-copy says.
+ *
+ * Build and run from the repository root:
+ *   javac -d out serverA/FileServerA.java bench/OpenBenchmark.java
+ *   java -cp out OpenBenchmark [fileSizeMB] [iterations]
+ */
+public class OpenBenchmark {
+    private static final int FIRST_PORT = 7100;
+    // From the server's Frame: opcode, request id, status, flags and payload length.
+    private static final int HEADER_SIZE = 15;
+    private static final byte OPEN = 2;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        File data = File.createTempFile("open-benchmark", ".bin");
+        data.deleteOnExit();
+        try (RandomAccessFile file = new RandomAccessFile(data, "rw")) {
+            byte[] block = new byte[1024 * 1024];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) ('a' + i % 26);
+            }
+            for (int i = 0; i < sizeMb; i++) {
+                file.write(block);
+            }
+        }
+
+        System.out.printf("%-8s %-7s %-9s %10s %8s %8s %14s%n",
+                "engine", "proto", "zero-copy", "MB/s", "GCs", "GC ms", "alloc/OPEN KB");
+        int port = FIRST_PORT;
+        for (String engine : new String[] { "threads", "nio" }) {
+            for (boolean binary : new boolean[] { false, true }) {
+                for (boolean zeroCopy : new boolean[] { false, true }) {
+                    run(port++, engine, binary, zeroCopy, data, iterations);
+                }
+            }
+        }
+    }
+
+    private static void run(int port, String engine, boolean binary, boolean zeroCopy, File data, int iterations)
+            throws Exception {
+        try (FileServerA server = new FileServerA(port, new String[] { "--engine=" + engine, "--zero-copy=" + zeroCopy })) {
+            Thread serverThread = new Thread(server::start, "benchmark-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                OutputStream out = socket.getOutputStream();
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                if (binary) {
+                    out.write(("HELLO BINARY\n").getBytes(StandardCharsets.UTF_8));
+                    skipLine(in);
+                }
+                String request = "OPEN " + data.getAbsolutePath() + " r 0 " + data.length();
+                byte[] sink = new byte[64 * 1024];
+
+                for (int i = 0; i < 2; i++) {
+                    open(out, in, request, binary, data.length(), sink);
+                }
+
+                long gcCount = gcCount();
+                long gcTime = gcTime();
+                Map<Long, Long> allocated = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    open(out, in, request, binary, data.length(), sink);
+                }
+                long elapsed = System.nanoTime() - start;
+                long serverAllocated = allocatedSince(allocated);
+
+                double megabytes = (double) data.length() * iterations / (1024 * 1024);
+                System.out.printf("%-8s %-7s %-9s %10.1f %8d %8d %14d%n",
+                        engine, binary ? "binary" : "text", zeroCopy, megabytes / (elapsed / 1e9),
+                        gcCount() - gcCount, gcTime() - gcTime, serverAllocated / iterations / 1024);
+            }
+        }
+    }
+
+    private static void open(OutputStream out, DataInputStream in, String request, boolean binary, long size,
+            byte[] sink) throws IOException {
+        byte[] command = request.getBytes(StandardCharsets.UTF_8);
+        long expected;
+        if (binary) {
+            // Request id 1, status and flags 0.
+            out.write(ByteBuffer.allocate(HEADER_SIZE).put(OPEN).putInt(1).put((byte) 0).put((byte) 0)
+                    .putLong(command.length).array());
+            out.write(command);
+            out.flush();
+            in.readFully(sink, 0, HEADER_SIZE);
+            expected = size;
+        } else {
+            out.write(command);
+            out.write('\n');
+            out.flush();
+            expected = size + System.lineSeparator().length() + ("END_OF_DATA" + System.lineSeparator()).length();
+        }
+        skip(in, expected, sink);
+    }
+
+    private static void skip(InputStream in, long count, byte[] sink) throws IOException {
+        while (count > 0) {
+            int read = in.read(sink, 0, (int) Math.min(sink.length, count));
+            if (read == -1) {
+                throw new IOException("Server closed the connection");
+            }
+            count -= read;
+        }
+    }
+
+    private static void skipLine(InputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            // Handshake reply, nothing to keep.
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    // Bytes allocated per thread, leaving out the benchmark's own client thread.
+    private static Map<Long, Long> allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != Thread.currentThread().getId() && bytes[i] >= 0) {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+    private static long allocatedSince(Map<Long, Long> before) {
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : allocatedBytes().entrySet()) {
+            total += entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+        }
+        return total;
+    }
+}
@@ -1,51 +1,191 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
-import java.net.ServerSocket;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class FileServerA implements AutoCloseable {
-    private final ServerSocket serverSocket;
+    private static final int ACCEPT_BACKLOG = 4096;
+
+    private final ServerSocketChannel serverChannel;
     private final ExecutorService executorService;
-    private final LockManager lockManager;
+    private final ServerContext context;
+    private final ServerOptions options;
+    private final NioEventLoop[] eventLoops;
 
     public FileServerA(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        executorService = Executors.newCachedThreadPool();
-        lockManager = new LockManager();
+        this(port, new ServerOptions());
+    }
+
+    // Takes the same --name=value options as main, for running the server inside another program.
+    public FileServerA(int port, String[] args) throws IOException {
+        this(port, ServerOptions.parse(args));
+    }
+
+    public FileServerA(int port, ServerOptions options) throws IOException {
+        this.options = options;
+        serverChannel = ServerSocketChannel.open();
+        // The default backlog of 50 throttles bursts of connects to a few hundred a second.
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        ExecutorService virtualThreads = "virtual".equals(options.engine) ? newVirtualThreadExecutor() : null;
+        if ("virtual".equals(options.engine) && virtualThreads == null) {
+            System.out.println("Warning: --engine=virtual needs Java 21 or newer, this is Java "
+                    + Runtime.version().feature() + "; running with --engine=threads instead");
+            options.engine = "threads";
+        }
+        executorService = virtualThreads != null ? virtualThreads : Executors.newCachedThreadPool();
+        BlockCache blockCache = options.cacheSize > 0 ? new BlockCache(options.cacheSize) : null;
+        MappedFiles mappedFiles = options.mmapThreshold > 0
+                ? new MappedFiles(options.mmapThreshold, options.mmapLimit)
+                : null;
+        CompressionCache compressionCache = options.compress && options.compressCache > 0
+                ? new CompressionCache(options.compressCache)
+                : null;
+        WriteAheadLog wal = options.walFile != null
+                ? WriteAheadLog.open(options.walFile, options.walWindowMillis, options.walCheckpoint)
+                : new WriteAheadLog();
+        NamespaceIndex index = options.index ? NamespaceIndex.build(Paths.get(""), options.indexWatch) : null;
+        context = new ServerContext(options,
+                new LockManager(executorService, blockCache, mappedFiles, options.leaseMillis, options.verbose), blockCache,
+                mappedFiles, compressionCache, new FileVersions(), wal, index);
+        eventLoops = "nio".equals(options.engine) ? new NioEventLoop[options.eventLoops] : new NioEventLoop[0];
     }
 
     public void start() {
+        if ("nio".equals(options.engine)) {
+            startEventLoops();
+        }
         try {
-            while (!serverSocket.isClosed()) {
-                Socket clientSocket = serverSocket.accept();
-                executorService.submit(new ClientHandler(clientSocket, lockManager));
+            int next = 0;
+            while (serverChannel.isOpen()) {
+                SocketChannel clientChannel = serverChannel.accept();
+                if (eventLoops.length > 0) {
+                    // Hand the connection to the event loops round-robin.
+                    eventLoops[next].register(clientChannel);
+                    next = (next + 1) % eventLoops.length;
+                } else {
+                    executorService.submit(new ClientHandler(clientChannel.socket(), context));
+                }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (serverChannel.isOpen()) {
+                e.printStackTrace();
+            }
         } finally {
             executorService.shutdown();
         }
     }
 
+    // Looked up reflectively so the server still builds and runs on JDKs without virtual threads; null there.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private void startEventLoops() {
+        try {
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new NioEventLoop(context);
+                Thread loopThread = new Thread(eventLoops[i], "nio-loop-" + i);
+                loopThread.start();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open selector", e);
+        }
+        System.out.println("NIO engine running with " + eventLoops.length + " event loop(s)");
+    }
+
     public static void main(String[] args) {
-        int port = 6666;
-        try (FileServerA server = new FileServerA(port)) {
-            System.out.println("Server started on port " + port);
+        run(6666, args);
+    }
+
+    // Also the entry point of FileServerB, which is this server on another port.
+    static void run(int port, String[] args) {
+        ServerOptions options = ServerOptions.parse(args);
+        try (FileServerA server = new FileServerA(port, options)) {
+            System.out.println("Server started on port " + port + " (engine: " + options.engine + ")");
             server.start();
         } catch (IOException e) {
             e.printStackTrace();
@@ -54,60 +194,412 @@ public class FileServerA implements AutoCloseable {
 
     @Override
     public void close() throws IOException {
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            serverSocket.close();
+        if (serverChannel != null && serverChannel.isOpen()) {
+            serverChannel.close();
+        }
+        for (NioEventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.close();
+            }
         }
         if (executorService != null && !executorService.isShutdown()) {
             executorService.shutdown();
         }
+        context.lockManager.close();
+        context.wal.close();
+        if (context.index != null) {
+            context.index.close();
+        }
+    }
+}
+
+/**
+ * Startup options, given as --name=value arguments.
+ *
+ * --engine=threads      one ClientHandler thread per connection (default)
+ * --engine=virtual      one ClientHandler virtual thread per connection (Java 21+;
+ *                       older JDKs warn and run the threads engine)
+ * --engine=nio          selector based event loops
+ * --event-loops=N       number of event loop threads for the nio engine
+ * --zero-copy=BOOL      send OPEN regions with FileChannel.transferTo (default true)
+ * --stream-chunk=BYTES  chunk size of streaming OPENs (default 256 KB)
+ * --update-queue=N      FILE_UPDATE pushes a connection may have pending (default 16)
+ * --slow-consumer=P     what to do when that queue is full: coalesce (default), drop
+ *                       or disconnect
+ * --max-frame=SIZE      largest binary frame payload taken from a client, after
+ *                       inflating (default 16m); a bigger frame is answered with an
+ *                       error and the connection closed. Peer servers are not limited
+ * --cache-size=SIZE     off-heap block cache for small files, e.g. 64m; 0 turns it off
+ *                       (default). Cached files are copied out of the cache instead
+ *                       of being sent with zero-copy
+ * --lease=MILLIS        how long a connection keeps its write locks without sending
+ *                       anything (default 60000); 0 keeps them until CLOSE or disconnect.
+ *                       A WRITE or PATCH after the locks were taken back is refused
+ * --mmap-threshold=SIZE serve files at least this big from memory mappings, e.g. 16m;
+ *                       0 turns it off (default)
+ * --mmap-limit=SIZE     total size of the files mapped at once (default 1g)
+ * --compress=BOOL       deflate file data for binary clients that ask for it (default true)
+ * --compress-min=SIZE   smaller payloads are sent as they are (default 1k)
+ * --compress-cache=SIZE deflated OPEN regions kept for the next reader (default 16m);
+ *                       0 turns it off
+ * --replica-timeout=MILLIS how long a replicated write waits for its write quorum
+ *                       (default 5000)
+ * --peer-key=KEY        shared by the servers of a cluster: writes forwarded to this
+ *                       server as a replica are only taken from connections that
+ *                       greeted it with HELLO BINARY PEER KEY (default: empty)
+ * --wal=FILE            log every change to FILE before applying it, and replay the log
+ *                       at startup (default: no log)
+ * --wal-window=MILLIS   how long a log force waits for more changes to share it
+ *                       (default 1); 0 only shares it with changes logged meanwhile
+ * --wal-checkpoint=SIZE log size at which the changed files are forced and the log
+ *                       emptied (default 64m)
+ * --ls-parallelism=N    threads walking subdirectories for recursive LS, shared by all
+ *                       connections (default 4)
+ * --index=BOOL          keep the namespace in memory for existence checks and LS
+ *                       (default false); startup then scans the whole tree and the
+ *                       heap holds a node per file and directory
+ * --index-watch=BOOL    follow changes made outside the server with a WatchService
+ *                       (default true, only with --index); takes one inotify watch
+ *                       per directory, counted against fs.inotify.max_user_watches
+ * --verbose=BOOL        print a line for every connection, read subscription and
+ *                       update fan-out (default false)
+ */
+class ServerOptions {
+    String engine = "threads";
+    int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+    boolean zeroCopy = true;
+    int streamChunk = 256 * 1024;
+    int updateQueue = 16;
+    String slowConsumer = "coalesce";
+    int maxFrame = 16 * 1024 * 1024;
+    long cacheSize = 0;
+    long leaseMillis = 60_000;
+    long mmapThreshold = 0;
+    long mmapLimit = 1024L * 1024 * 1024;
+    boolean compress = true;
+    long compressMin = 1024;
+    long compressCache = 16L * 1024 * 1024;
+    long replicaTimeoutMillis = 5_000;
+    String peerKey = "";
+    String walFile;
+    long walWindowMillis = 1;
+    long walCheckpoint = 64L * 1024 * 1024;
+    int lsParallelism = 4;
+    boolean index = false;
+    boolean indexWatch = true;
+    boolean verbose = false;
+
+    static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "engine":
+                    if (!"threads".equals(value) && !"virtual".equals(value) && !"nio".equals(value)) {
+                        throw new IllegalArgumentException("Unknown engine: " + value);
+                    }
+                    options.engine = value;
+                    break;
+                case "event-loops":
+                    options.eventLoops = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "zero-copy":
+                    options.zeroCopy = Boolean.parseBoolean(value);
+                    break;
+                case "stream-chunk":
+                    options.streamChunk = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "update-queue":
+                    options.updateQueue = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "slow-consumer":
+                    if (!"coalesce".equals(value) && !"drop".equals(value) && !"disconnect".equals(value)) {
+                        throw new IllegalArgumentException("Unknown slow consumer policy: " + value);
+                    }
+                    options.slowConsumer = value;
+                    break;
+                case "max-frame":
+                    options.maxFrame = (int) Math.min(Integer.MAX_VALUE, Math.max(1, parseSize(value)));
+                    break;
+                case "cache-size":
+                    options.cacheSize = parseSize(value);
+                    break;
+                case "lease":
+                    options.leaseMillis = Math.max(0, Long.parseLong(value));
+                    break;
+                case "mmap-threshold":
+                    options.mmapThreshold = parseSize(value);
+                    break;
+                case "mmap-limit":
+                    options.mmapLimit = parseSize(value);
+                    break;
+                case "compress":
+                    options.compress = Boolean.parseBoolean(value);
+                    break;
+                case "compress-min":
+                    options.compressMin = parseSize(value);
+                    break;
+                case "compress-cache":
+                    options.compressCache = parseSize(value);
+                    break;
+                case "replica-timeout":
+                    options.replicaTimeoutMillis = Math.max(0, Long.parseLong(value));
+                    break;
+                case "peer-key":
+                    options.peerKey = value;
+                    break;
+                case "wal":
+                    options.walFile = value.isEmpty() ? null : value;
+                    break;
+                case "wal-window":
+                    options.walWindowMillis = Math.max(0, Long.parseLong(value));
+                    break;
+                case "wal-checkpoint":
+                    options.walCheckpoint = parseSize(value);
+                    break;
+                case "ls-parallelism":
+                    options.lsParallelism = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "index":
+                    options.index = Boolean.parseBoolean(value);
+                    break;
+                case "index-watch":
+                    options.indexWatch = Boolean.parseBoolean(value);
+                    break;
+                case "verbose":
+                    options.verbose = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        return options;
+    }
+
+    // A byte count with an optional k, m or g suffix.
+    static long parseSize(String value) {
+        String digits = value.toLowerCase();
+        long unit = 1;
+        if (digits.endsWith("k")) {
+            unit = 1024;
+        } else if (digits.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (digits.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        return Math.max(0, Long.parseLong(digits) * unit);
+    }
+}
+
+/**
+ * What every connection of one server shares.
+ */
+class ServerContext {
+    final ServerOptions options;
+    final LockManager lockManager;
+    final BlockCache blockCache; // null with --cache-size=0
+    final MappedFiles mappedFiles; // null unless --mmap-threshold is set
+    final CompressionCache compressionCache; // null with --compress=false or --compress-cache=0
+    final FileVersions versions;
+    final ReplicaLinks replicaLinks;
+    final WriteAheadLog wal;
+    final NamespaceIndex index; // null with --index=false
+    final DirectoryLister lister;
+
+    ServerContext(ServerOptions options, LockManager lockManager, BlockCache blockCache, MappedFiles mappedFiles,
+            CompressionCache compressionCache, FileVersions versions, WriteAheadLog wal, NamespaceIndex index) {
+        this.options = options;
+        this.lockManager = lockManager;
+        this.blockCache = blockCache;
+        this.mappedFiles = mappedFiles;
+        this.compressionCache = compressionCache;
+        this.versions = versions;
+        this.replicaLinks = new ReplicaLinks(options.peerKey);
+        this.wal = wal;
+        this.index = index;
+        this.lister = new DirectoryLister(versions, index, options.lsParallelism);
+    }
+
+    // One key per file however the client spelled its path.
+    static String pathKey(String fileName) {
+        return Paths.get(fileName).toAbsolutePath().normalize().toString();
+    }
+}
+
+/**
+ * Version tags for conditional OPENs. A version combines the file's modification time
+ * and size with the number of changes this server made to it, so two writes within one
+ * timestamp tick still differ, and with the server's start time, so no version from
+ * before a restart is ever taken as current.
+ */
+class FileVersions {
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final Map<String, Long> changes = new ConcurrentHashMap<>();
+
+    String versionOf(String fileName, long length) throws IOException {
+        return versionOf(fileName, Files.getLastModifiedTime(Paths.get(fileName)).toMillis(), length);
+    }
+
+    // With the modification time already known, e.g. from the namespace index.
+    String versionOf(String fileName, long modified, long length) {
+        String path = ServerContext.pathKey(fileName);
+        return epoch + "-" + Long.toString(modified, 36) + "-" + Long.toString(length, 36) + "-"
+                + changes.getOrDefault(path, 0L);
+    }
+
+    // Kept after a delete, so a file created again under the same name gets new versions.
+    void changed(String fileName) {
+        changes.merge(ServerContext.pathKey(fileName), 1L, Long::sum);
     }
 }
 
 class ClientHandler implements Runnable {
+    static final String BINARY_HELLO = "HELLO BINARY";
+    // Asks for the binary protocol with deflated file data; answered with "HELLO BINARY OK DEFLATE" if granted.
+    static final String DEFLATE_HELLO = BINARY_HELLO + " DEFLATE";
+    // Sent, with the --peer-key, by another server that forwards writes to this one as a replica.
+    static final String PEER_HELLO = BINARY_HELLO + " PEER";
+    // Starts the first line of a FILE_UPDATE push on a text connection, see escapeLines.
+    static final char PUSH_MARK = '\u001E';
+    // Page size of a binary LS sent without limit=, so one frame never holds a whole large directory.
+    static final int BINARY_LS_PAGE = 1000;
+
     private final Socket clientSocket;
+    // Where handlers print their replies: a buffer while a request runs, written out by sendText.
     private PrintWriter out;
+    // The connection's own writer, for text replies and pushes.
+    private PrintWriter connectionOut;
+    private StringWriter pendingText;
     private BufferedReader in;
     private LockManager lockManager;
+    private final ServerOptions options;
+    private final BlockCache blockCache;
+    private final MappedFiles mappedFiles;
+    private final CompressionCache compressionCache;
+    private final FileVersions versions;
+    private final ReplicaLinks replicaLinks;
+    private final WriteAheadLog wal;
+    private final DirectoryLister lister;
+    private final NamespaceIndex index;
+    private final NioTransport transport;
+    private final UpdateQueue updates;
+
+    // WRITE payload being collected until END_OF_DATA arrives.
+    private String pendingWriteFile;
+    private StringBuilder pendingWriteContent;
+
+    // Byte stream under out, for frames and raw file contents.
+    private OutputStream rawOut;
+
+    // Binary protocol state, set once the client has sent HELLO BINARY.
+    private volatile boolean binary;
+    // Set with binary when the client asked for deflated file data and --compress allows it.
+    private volatile boolean deflate;
+    // Set with binary for a server that forwards writes here; only such connections may REPLICATE.
+    private boolean peer;
+    // Held only while bytes go out, never while a request runs. A ReentrantLock rather than a
+    // monitor, so a virtual thread blocked on a socket write under it does not pin its carrier.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Frame currentRequest;
+    private boolean replied;
+    // Status of the reply frame to currentRequest, set by the handler that answers with an error.
+    private byte replyStatus;
+
+    // Streaming OPENs waiting for credit, by request id. Only touched by the reading thread.
+    private final Map<Integer, OutgoingStream> streams = new HashMap<>();
 
-    public ClientHandler(Socket socket, LockManager lockManager) {
+    // Block sized buffer for regions served from the block cache, allocated on first use.
+    private byte[] cacheBuffer;
+
+    // An OPEN with wait=ms whose range was taken: it queued in the LockManager and is run
+    // again, with grantedLock set, once the wait completes. Nothing else is read from the
+    // connection meanwhile, so replies stay in request order.
+    private CompletableFuture<Boolean> lockWait;
+    private String waitingLine;
+    private Frame waitingFrame;
+    private Boolean grantedLock;
+
+    // Where the writes of files this connection opened with replicas=... are forwarded, by file.
+    private final Map<String, Replication> replications = new HashMap<>();
+    // The reply to a replicated write, known once the write quorum is in. Like lockWait it
+    // stops reading from the connection, but no thread or event loop waits for it.
+    private CompletableFuture<DeferredReply> replicaWait;
+    // A change whose write-ahead log record is not on disk yet. Like replicaWait it stops
+    // reading from the connection; resume applies the change once the record is forced.
+    private CompletableFuture<WriteAheadLog.Hold> logWait;
+    private LoggedChange loggedChange;
+
+    public ClientHandler(Socket socket, ServerContext context) {
         this.clientSocket = socket;
-        this.lockManager = lockManager;
+        this.lockManager = context.lockManager;
+        this.options = context.options;
+        this.blockCache = context.blockCache;
+        this.mappedFiles = context.mappedFiles;
+        this.compressionCache = context.compressionCache;
+        this.versions = context.versions;
+        this.replicaLinks = context.replicaLinks;
+        this.wal = context.wal;
+        this.lister = context.lister;
+        this.index = context.index;
+        this.transport = null;
+        this.updates = new UpdateQueue(this, lockManager.getNotifyExecutor(), options);
+    }
+
+    // Used by the NIO engine: lines and frames are pushed in through handleLine and
+    // handleFrame, and replies go to output or, for file contents, to transport.
+    ClientHandler(OutputStream output, NioTransport transport, ServerContext context) {
+        this.clientSocket = null;
+        this.lockManager = context.lockManager;
+        this.options = context.options;
+        this.blockCache = context.blockCache;
+        this.mappedFiles = context.mappedFiles;
+        this.compressionCache = context.compressionCache;
+        this.versions = context.versions;
+        this.replicaLinks = context.replicaLinks;
+        this.wal = context.wal;
+        this.lister = context.lister;
+        this.index = context.index;
+        this.transport = transport;
+        this.updates = new UpdateQueue(this, lockManager.getNotifyExecutor(), options);
+        this.connectionOut = new PrintWriter(output, true);
+        this.out = connectionOut;
+        this.rawOut = output;
+    }
+
+    boolean isBinary() {
+        return binary;
     }
 
+    // On a virtual thread the blocking readLine() parks without pinning; the RandomAccessFile
+    // reads and writes in the handlers pin briefly, which the JDK compensates for.
     @Override
     public void run() {
         try {
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
+            rawOut = clientSocket.getOutputStream();
+            connectionOut = new PrintWriter(rawOut, true);
+            out = connectionOut;
             in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
 
             String inputLine;
-            System.out.println("Ready to accept commands.");
+            if (options.verbose) {
+                System.out.println("Ready to accept commands.");
+            }
             while ((inputLine = in.readLine()) != null) {
-                String[] commands = inputLine.split(" ", 6);
-                String command = commands[0];
-
-                switch (command) {
-                    case "LS":
-                        handleLs(commands.length > 1 ? commands[1] : ".");
-                        break;
-                    case "OPEN":
-                        handleOpen(commands);
-                        break;
-                    case "WRITE":
-                        handleWrite(commands);
-                        break;
-                    case "CREATE_FILE":
-                        handleCreateFILE(commands);
-                        break;
-                    case "CREATE_DIR":
-                        handleCreateDirectory(commands);
-                        break;
-                    case "DELETE":
-                        handleDelete(commands);
-                        break;
-                    default:
-                        out.println("Invalid command");
-                        break;
+                handleLine(inputLine);
+                awaitPending();
+                if (binary) {
+                    // The client waits for the handshake reply before sending frames,
+                    // so the reader holds no buffered bytes past the HELLO line.
+                    rawOut = new BufferedOutputStream(clientSocket.getOutputStream(), 64 * 1024);
+                    runBinary(new DataInputStream(new BufferedInputStream(clientSocket.getInputStream())));
+                    break;
                 }
             }
         } catch (IOException e) {
@@ -117,103 +609,595 @@ class ClientHandler implements Runnable {
         }
     }
 
+    private void runBinary(DataInputStream input) throws IOException {
+        Frame frame;
+        try {
+            while ((frame = Frame.read(input, maxFrame())) != null) {
+                handleFrame(frame);
+                awaitPending();
+            }
+        } catch (Frame.TooLargeException e) {
+            rejectFrame(e); // run closes the connection.
+        }
+    }
+
+    // Largest frame payload this connection takes; see --max-frame.
+    int maxFrame() {
+        return peer ? Integer.MAX_VALUE : options.maxFrame;
+    }
+
+    // Answers a frame over maxFrame. The engine closes the connection afterwards.
+    void rejectFrame(Frame.TooLargeException e) throws IOException {
+        System.out.println("Closing connection: " + e.getMessage());
+        byte[] bytes = ("Error: " + e.getMessage() + " (--max-frame)").getBytes(StandardCharsets.UTF_8);
+        writeFrame(e.opcode, e.requestId, Frame.STATUS_ERROR, bytes, 0, bytes.length);
+    }
+
+    // The reading thread parks here, outside writeLock so pushes still get through.
+    // A resumed write may wait again, for its replicas.
+    private void awaitPending() throws IOException {
+        CompletableFuture<?> wait;
+        while ((wait = pendingWait()) != null) {
+            wait.exceptionally(error -> null).join(); // A failed force is answered by resume.
+            resume();
+        }
+    }
+
+    // The lock, log or replica wait of the request just handled, if any. The NIO engine
+    // stops reading from the connection and calls resume on its loop once this completes.
+    CompletableFuture<?> pendingWait() {
+        return lockWait != null ? lockWait : logWait != null ? logWait : replicaWait;
+    }
+
+    // Finishes the request that waited: applies a change now that it is logged, sends the
+    // reply of a replicated write, or runs the waiting OPEN again, now holding its lock or
+    // answering that the wait timed out.
+    void resume() throws IOException {
+        if (logWait != null) {
+            CompletableFuture<WriteAheadLog.Hold> logged = logWait;
+            LoggedChange change = loggedChange;
+            logWait = null;
+            loggedChange = null;
+            Frame request = waitingFrame;
+            waitingFrame = null;
+            if (request != null) {
+                answer(request, () -> change.apply(logged));
+            } else {
+                answerLine(() -> change.apply(logged));
+            }
+            return;
+        }
+        if (replicaWait != null) {
+            DeferredReply reply = replicaWait.join();
+            replicaWait = null;
+            Frame request = waitingFrame;
+            waitingFrame = null;
+            if (request != null) {
+                byte[] bytes = reply.text.getBytes(StandardCharsets.UTF_8);
+                writeFrame(request.opcode, request.requestId, reply.status, bytes, 0, bytes.length);
+                return;
+            }
+            writeLock.lock();
+            try {
+                connectionOut.println(escapeLines(reply.text));
+            } finally {
+                writeLock.unlock();
+            }
+            return;
+        }
+        grantedLock = lockWait.join();
+        lockWait = null;
+        try {
+            if (waitingFrame != null) {
+                Frame request = waitingFrame;
+                waitingFrame = null;
+                handleFrame(request);
+            } else {
+                String line = waitingLine;
+                waitingLine = null;
+                handleLine(line);
+            }
+        } finally {
+            grantedLock = null;
+        }
+    }
+
+    // The reply is collected while the command runs and written in one go under writeLock,
+    // which pushes take as well, so a FILE_UPDATE never lands inside the reply.
+    void handleLine(String inputLine) throws IOException {
+        lockManager.renewLease(this);
+        answerLine(() -> {
+            if (pendingWriteFile != null) {
+                collectWriteLine(inputLine);
+            } else if (BINARY_HELLO.equals(inputLine) || DEFLATE_HELLO.equals(inputLine)) {
+                deflate = options.compress && DEFLATE_HELLO.equals(inputLine);
+                out.println(BINARY_HELLO + " OK" + (deflate ? " DEFLATE" : ""));
+                binary = true;
+            } else if (inputLine.equals(PEER_HELLO) || inputLine.startsWith(PEER_HELLO + " ")) {
+                String key = inputLine.substring(PEER_HELLO.length()).trim();
+                if (MessageDigest.isEqual(key.getBytes(StandardCharsets.UTF_8),
+                        options.peerKey.getBytes(StandardCharsets.UTF_8))) {
+                    out.println(BINARY_HELLO + " OK");
+                    binary = true;
+                    peer = true;
+                } else {
+                    replyError("Error: Wrong peer key");
+                }
+            } else {
+                dispatch(inputLine.split(" ", 6));
+                if (lockWait != null) {
+                    waitingLine = inputLine;
+                }
+            }
+        });
+    }
+
+    // Runs a text command, or the rest of one that waited, and sends what it printed.
+    private void answerLine(Action action) throws IOException {
+        pendingText = new StringWriter();
+        out = new PrintWriter(pendingText);
+        try {
+            action.run();
+            sendText();
+        } finally {
+            out = connectionOut;
+            pendingText = null;
+        }
+    }
+
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    // Writes what the text command printed so far.
+    private void sendText() {
+        out.flush();
+        writeLock.lock();
+        try {
+            connectionOut.print(escapeLines(pendingText.toString()));
+            connectionOut.flush();
+            pendingText.getBuffer().setLength(0);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Runs one request of the binary protocol. Command handlers keep printing their
+     * usual text replies; those are collected and sent back as the payload of a single
+     * reply frame, unless the handler already replied with a data frame itself. The
+     * frame's status is the one the handler set with replyError or replyDenied.
+     */
+    void handleFrame(Frame request) throws IOException {
+        lockManager.renewLease(this);
+        if ((request.flags & Frame.FLAG_DEFLATE) != 0) {
+            request = request.inflated(maxFrame());
+        }
+        if (request.opcode == Frame.CREDIT) {
+            sendStreamChunks(request.requestId, ByteBuffer.wrap(request.payload).getInt());
+            return;
+        }
+        Frame inflated = request;
+        answer(request, () -> handleRequest(inflated));
+    }
+
+    // Runs a request, or the rest of one that waited, and replies with what it printed.
+    private void answer(Frame request, Action action) throws IOException {
+        StringWriter text = new StringWriter();
+        PrintWriter textOut = out;
+        out = new PrintWriter(text);
+        currentRequest = request;
+        replied = false;
+        replyStatus = Frame.STATUS_OK;
+        try {
+            action.run();
+        } finally {
+            out = textOut;
+            currentRequest = null;
+        }
+        if (lockWait != null || logWait != null || replicaWait != null) {
+            waitingFrame = request; // Answered by resume.
+            return;
+        }
+        if (!replied) {
+            // Only the line break println put after the last line is dropped; the rest is sent as written.
+            String reply = text.toString();
+            if (reply.endsWith(System.lineSeparator())) {
+                reply = reply.substring(0, reply.length() - System.lineSeparator().length());
+            }
+            byte[] bytes = reply.getBytes(StandardCharsets.UTF_8);
+            writeFrame(request.opcode, request.requestId, replyStatus, bytes, 0, bytes.length);
+        }
+    }
+
+    private void handleRequest(Frame request) throws IOException {
+        switch (request.opcode) {
+            case Frame.COMMAND:
+            case Frame.OPEN:
+            case Frame.OPEN_STREAM:
+                String[] commands = new String(request.payload, StandardCharsets.UTF_8).split(" ", 6);
+                if ("WRITE".equals(commands[0])) {
+                    replyError("Error: WRITE must be sent as a WRITE frame");
+                } else {
+                    dispatch(commands);
+                }
+                break;
+            case Frame.WRITE:
+                DataInputStream payload = new DataInputStream(new ByteArrayInputStream(request.payload));
+                String fileName = payload.readUTF();
+                byte[] content = new byte[payload.available()];
+                payload.readFully(content);
+                writeFile(fileName, content);
+                break;
+            case Frame.PATCH:
+                handlePatch(new DataInputStream(new ByteArrayInputStream(request.payload)));
+                break;
+            case Frame.REPLICATE:
+                if (peer) {
+                    handleReplicate(new DataInputStream(new ByteArrayInputStream(request.payload)));
+                } else {
+                    replyDenied("Write access denied: REPLICATE is only taken from peer servers");
+                }
+                break;
+            default:
+                replyError("Error: Unknown opcode " + request.opcode);
+                break;
+        }
+    }
+
+    // Error replies go through here, so a binary reply says so in its status whatever the text.
+    private void replyError(String message) {
+        replyStatus = Frame.STATUS_ERROR;
+        out.println(message);
+    }
+
+    private void replyDenied(String message) {
+        replyStatus = Frame.STATUS_DENIED;
+        out.println(message);
+    }
+
+    private void writeFrame(byte opcode, int requestId, byte status, byte[] payload, int offset, int length)
+            throws IOException {
+        writeFrame(opcode, requestId, status, (byte) 0, payload, offset, length);
+    }
+
+    private void writeFrame(byte opcode, int requestId, byte status, byte flags, byte[] payload, int offset,
+            int length) throws IOException {
+        writeLock.lock();
+        try {
+            rawOut.write(Frame.header(opcode, requestId, status, flags, length));
+            rawOut.write(payload, offset, length);
+            rawOut.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void dispatch(String[] commands) throws IOException {
+        String command = commands[0];
+
+        switch (command) {
+            case "LS":
+                handleLs(commands);
+                break;
+            case "OPEN":
+                handleOpen(commands);
+                break;
+            case "WRITE":
+                handleWrite(commands);
+                break;
+            case "CREATE_FILE":
+                handleCreateFILE(commands);
+                break;
+            case "CREATE_DIR":
+                handleCreateDirectory(commands);
+                break;
+            case "DELETE":
+                handleDelete(commands);
+                break;
+            case "UNSUBSCRIBE":
+                handleUnsubscribe(commands);
+                break;
+            case "HEARTBEAT":
+                // Every request renews the lease; this one exists for clients with nothing else to send.
+                // Text connections get no reply, so a heartbeat never lands among the lines of another.
+                if (currentRequest != null) {
+                    out.println("Lease renewed");
+                }
+                break;
+            case "STATS":
+                out.println((blockCache != null ? "Block cache: " + blockCache.stats() : "Block cache: disabled")
+                        + (mappedFiles != null ? ", mapped files: " + mappedFiles.stats() : "")
+                        + (index != null ? ", namespace index: " + index.stats() : ""));
+                break;
+            default:
+                replyError("Invalid command");
+                break;
+        }
+    }
+
+    // Ends the FILE_UPDATE pushes an OPEN with permission r started.
+    private void handleUnsubscribe(String[] commands) {
+        if (commands.length < 2) {
+            replyError("Error: No file name specified");
+            return;
+        }
+        lockManager.removeReadClient(commands[1], this);
+        out.println("Unsubscribed from " + commands[1]);
+    }
+
     private void handleDelete(String[] commands) throws IOException {
         if (commands.length < 2) {
-            out.println("Error: No file or directory name specified");
+            replyError("Error: No file or directory name specified");
             return;
         }
 
         String name = commands[1];
         File fileOrDirectory = new File(name);
 
-        if (!fileOrDirectory.exists()) {
-            out.println("Error: File or directory does not exist - " + name);
+        if (!exists(name)) {
+            replyError("Error: File or directory does not exist - " + name);
             return;
         }
 
-        boolean deleted = fileOrDirectory.delete();
-        if (deleted) {
-            out.println("File or directory deleted successfully: " + name);
-        } else {
-            out.println("Error: Could not delete the file or directory - " + name);
-        }
+        whenLogged(name, WriteAheadLog.record(WriteAheadLog.DELETE, name), log -> {
+            boolean deleted;
+            try (WriteAheadLog.Hold logged = logChange(name, log)) {
+                if (logged == null) {
+                    return;
+                }
+                deleted = fileOrDirectory.delete();
+            }
+            fileChanged(name);
+            if (deleted) {
+                // Deleting a file opened for writing ends that write, e.g. when a file is moved.
+                lockManager.unlock(name, this);
+                out.println("File or directory deleted successfully: " + name);
+            } else {
+                replyError("Error: Could not delete the file or directory - " + name);
+            }
+        });
     }
 
     private void handleCreateDirectory(String[] commands) throws IOException {
         if (commands.length < 2) {
-            out.println("Error: No directory name specified");
+            replyError("Error: No directory name specified");
             return;
         }
 
         String dirName = commands[1];
         File directory = new File(dirName);
 
-        if (directory.exists()) {
-            out.println("Error: Directory already exists - " + dirName);
+        if (exists(dirName)) {
+            replyError("Error: Directory already exists - " + dirName);
             return;
         }
 
-        boolean created = directory.mkdir();
-        if (created) {
-            out.println("Directory created successfully: " + dirName);
-        } else {
-            out.println("Error: Could not create the directory - " + dirName);
-        }
+        whenLogged(dirName, WriteAheadLog.record(WriteAheadLog.CREATE_DIR, dirName), log -> {
+            boolean created;
+            try (WriteAheadLog.Hold logged = logChange(dirName, log)) {
+                if (logged == null) {
+                    return;
+                }
+                created = directory.mkdir();
+            }
+            namespaceChanged(dirName);
+            if (created) {
+                out.println("Directory created successfully: " + dirName);
+            } else {
+                replyError("Error: Could not create the directory - " + dirName);
+            }
+        });
     }
 
     private void handleCreateFILE(String[] commands) throws IOException {
         if (commands.length < 2) {
-            out.println("Error: No file name specified");
+            replyError("Error: No file name specified");
             return;
         }
 
         String fileName = commands[1];
         File file = new File(fileName);
 
-        if (file.exists()) {
-            out.println("Error: File already exists - " + fileName);
+        if (exists(fileName)) {
+            replyError("Error: File already exists - " + fileName);
             return;
         }
 
-        boolean created = file.createNewFile();
-        if (created) {
-            out.println("File created successfully: " + fileName);
+        whenLogged(fileName, WriteAheadLog.record(WriteAheadLog.CREATE_FILE, fileName), log -> {
+            boolean created;
+            try (WriteAheadLog.Hold logged = logChange(fileName, log)) {
+                if (logged == null) {
+                    return;
+                }
+                created = file.createNewFile();
+            }
+            namespaceChanged(fileName);
+            if (created) {
+                out.println("File created successfully: " + fileName);
+            } else {
+                replyError("Error: Could not create the file - " + fileName);
+            }
+        });
+    }
+
+    // Answered from the namespace index where it covers the path, else from the file system.
+    private boolean exists(String name) {
+        NamespaceIndex.Node node = index != null ? index.lookup(name) : null;
+        return node != null ? node != NamespaceIndex.MISSING : new File(name).exists();
+    }
+
+    private boolean isDirectory(String name) {
+        NamespaceIndex.Node node = index != null ? index.lookup(name) : null;
+        return node != null ? node.isDirectory() : new File(name).isDirectory();
+    }
+
+    // After the server created, changed or removed a path, so the next lookup already sees it.
+    private void namespaceChanged(String name) {
+        if (index != null) {
+            index.refresh(name);
+        }
+    }
+
+    /**
+     * Logs a change and applies it once the record is on disk: right away if it already
+     * is, else from resume, with logWait holding back the connection meanwhile. The
+     * change gets the log future, completed either way, and finishes the request.
+     */
+    private void whenLogged(String fileName, byte[] record, LoggedChange change) throws IOException {
+        CompletableFuture<WriteAheadLog.Hold> logged = wal.log(fileName, record);
+        if (logged.isDone()) {
+            change.apply(logged);
         } else {
-            out.println("Error: Could not create the file - " + fileName);
+            logWait = logged;
+            loggedChange = change;
+        }
+    }
+
+    private interface LoggedChange {
+        void apply(CompletableFuture<WriteAheadLog.Hold> logged) throws IOException;
+    }
+
+    // The hold of a logged change. Null, with the error already sent, if it could not be logged.
+    private WriteAheadLog.Hold logChange(String fileName, CompletableFuture<WriteAheadLog.Hold> logged) {
+        try {
+            return WriteAheadLog.await(logged);
+        } catch (IOException e) {
+            replyError("Error: Could not log the change to " + fileName + " - " + e.getMessage());
+            return null;
         }
     }
 
-    private void handleLs(String path) {
-        if (path == null || path.isEmpty()) {
-            path = ".";
+    /**
+     * LS [path] [limit=N] [cursor=C] [attrs=size,mtime,type,version] [recursive=true]
+     *
+     * Entries are read from a DirectoryStream, never as one array. Without limit or
+     * recursive they are sent in directory order as they are read. With limit a reply
+     * is one page: the first N names after the cursor in name order, ending with
+     * "NEXT_CURSOR C" if more follow; C is passed back as cursor= for the next page.
+     * recursive lists the whole tree as relative paths. attrs adds tab separated fields
+     * to each line in the order given: size, mtime (epoch millis), type (file, dir or
+     * other) and version (files only, "-" otherwise). Directories in the namespace
+     * index are listed from memory. A binary LS without limit is paged by
+     * BINARY_LS_PAGE, since its reply is a single frame. Outside the index every page
+     * rescans the directory, so listing N entries page by page reads about N * N / limit
+     * of them.
+     */
+    private void handleLs(String[] commands) {
+        String path = ".";
+        int limit = 0;
+        String cursor = null;
+        List<String> attributes = new ArrayList<>();
+        boolean recursive = false;
+        for (int i = 1; i < commands.length; i++) {
+            String token = commands[i];
+            try {
+                if (token.startsWith("limit=")) {
+                    limit = Math.max(0, Integer.parseInt(token.substring("limit=".length())));
+                } else if (token.startsWith("cursor=")) {
+                    cursor = URLDecoder.decode(token.substring("cursor=".length()), StandardCharsets.UTF_8);
+                } else if (token.startsWith("attrs=")) {
+                    for (String attribute : token.substring("attrs=".length()).split(",")) {
+                        if (!DirectoryLister.ATTRIBUTES.contains(attribute)) {
+                            replyError("Error: Unknown attribute - " + attribute);
+                            return;
+                        }
+                        attributes.add(attribute);
+                    }
+                } else if (token.startsWith("recursive=")) {
+                    recursive = Boolean.parseBoolean(token.substring("recursive=".length()));
+                } else if (!token.isEmpty()) {
+                    path = token;
+                }
+            } catch (IllegalArgumentException e) {
+                replyError("Error: Invalid LS option - " + token);
+                return;
+            }
+        }
+
+        if (limit == 0 && currentRequest != null) {
+            limit = BINARY_LS_PAGE;
         }
 
-        File directory = new File(path);
-        if (directory.exists() && directory.isDirectory()) {
-            String[] files = directory.list();
-            if (files != null) {
-                for (String file : files) {
-                    out.println(file);
+        Path directory = Paths.get(path);
+        if (!isDirectory(path)) {
+            replyError("Error: Directory does not exist - " + path);
+            return;
+        }
+        try {
+            if (limit == 0 && !recursive) {
+                lister.stream(directory, attributes, out::println);
+            } else {
+                DirectoryLister.Page page = lister.list(directory, limit, cursor, recursive, attributes);
+                for (String line : page.lines) {
+                    out.println(line);
+                }
+                if (page.next != null) {
+                    out.println("NEXT_CURSOR " + URLEncoder.encode(page.next, StandardCharsets.UTF_8));
                 }
             }
-            out.println("END_OF_LS");
-        } else {
-            out.println("Error: Directory does not exist - " + path);
+            if (currentRequest == null) {
+                out.println("END_OF_LS"); // A binary reply ends with its frame.
+            }
+        } catch (IOException e) {
+            replyError("Error: Could not list the directory " + path + " - " + e.getMessage());
         }
     }
 
+    /**
+     * OPEN fileName permission [startPosition [readLength]] [if-none-match=VERSION] [wait=MILLIS]
+     *      [replicas=HOST:PORT,... [quorum=N]]
+     *
+     * A w/rw OPEN write-locks the requested byte range only (the whole file when no range
+     * is given), so writers of disjoint regions do not exclude each other. A readLength of
+     * 0 locks everything from startPosition on: that is how a writer appends, opening at
+     * the end of the file. If the range is taken the OPEN is denied
+     * at once, or with wait=MILLIS queues in arrival order for up to that long before
+     * being denied. With if-none-match the client already holds the region at that version: if the
+     * file is unchanged the reply is just NOT_MODIFIED (STATUS_NOT_MODIFIED in binary),
+     * otherwise text replies start with a "VERSION v" line. Streaming OPENs always
+     * report the version after the region length. A w/rw OPEN with replicas makes this
+     * server the primary of the write: the PATCH or WRITE that ends it is forwarded to
+     * those servers and only acknowledged once quorum copies, this one included, have
+     * it (default: a majority).
+     */
     private void handleOpen(String[] commands) throws IOException {
         if (commands.length < 3) {
-            out.println("Error: Insufficient arguments for OPEN command.");
+            replyError("Error: Insufficient arguments for OPEN command.");
             return;
         }
         String fileName = commands[1];
         String permission = commands[2];
 
-        // Check write permissions and try to acquire lock if needed.
-        if ("w".equals(permission) || "rw".equals(permission)) {
-            if (!lockManager.tryLock(fileName)) {
-                out.println("Write access denied: File is currently open with write permission by another user.");
+        // Split key=value options off the positional arguments.
+        Map<String, String> openOptions = new HashMap<>();
+        List<String> arguments = new ArrayList<>(Arrays.asList(commands).subList(0, 3));
+        for (int i = 3; i < commands.length; i++) {
+            for (String token : commands[i].split(" ")) {
+                if (token.contains("=")) {
+                    openOptions.put(token.substring(0, token.indexOf('=')), token.substring(token.indexOf('=') + 1));
+                } else if (!token.isEmpty()) {
+                    arguments.add(token);
+                }
+            }
+        }
+        commands = arguments.toArray(new String[0]);
+        String knownVersion = openOptions.get("if-none-match");
+        long waitMillis = 0;
+        if (openOptions.containsKey("wait")) {
+            try {
+                waitMillis = Long.parseLong(openOptions.get("wait"));
+            } catch (NumberFormatException e) {
+                replyError("Error: Invalid wait time.");
+                return;
+            }
+        }
+        Replication replication = null;
+        if (openOptions.containsKey("replicas")) {
+            try {
+                replication = new Replication(openOptions.get("replicas"), openOptions.get("quorum"));
+            } catch (NumberFormatException e) {
+                replyError("Error: Invalid quorum.");
                 return;
             }
         }
@@ -230,144 +1214,3741 @@ class ClientHandler implements Runnable {
                     readLength = Long.parseLong(commands[4]);
                 }
             } catch (NumberFormatException e) {
-                out.println("Error: Invalid start position or read length.");
+                replyError("Error: Invalid start position or read length.");
+                return;
+            }
+        }
+        if (startPosition < 0 || readLength < 0) {
+            replyError("Error: Invalid start position or read length.");
+            return;
+        }
+
+        // Check write permissions and try to lock the requested range if needed.
+        boolean writing = "w".equals(permission) || "rw".equals(permission);
+        if (writing) {
+            boolean locked;
+            if (grantedLock != null) {
+                locked = grantedLock; // Second run, after waiting in the queue.
+            } else if (waitMillis > 0) {
+                CompletableFuture<Boolean> wait = lockManager.lockWhenFree(fileName, startPosition, readLength, this,
+                        waitMillis);
+                if (!wait.isDone()) {
+                    lockWait = wait;
+                    return;
+                }
+                locked = wait.join();
+            } else {
+                locked = lockManager.tryLock(fileName, startPosition, readLength, this);
+            }
+            if (!locked) {
+                replyDenied(grantedLock != null
+                        ? "Write access denied: Timed out waiting for the write lock."
+                        : "Write access denied: File is currently open with write permission by another user.");
                 return;
             }
+            if (replication != null) {
+                replications.put(fileName, replication);
+            } else {
+                replications.remove(fileName);
+            }
         }
 
         try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
             long fileLength = file.length();
+            // Taken before any data is read: a write racing with this OPEN can only make
+            // the version older than the data, which costs a download but is never stale.
+            String version = versions.versionOf(fileName, fileLength);
+            if (version.equals(knownVersion)) {
+                replyNotModified(version);
+                if ("r".equals(permission)) {
+                    lockManager.addReadClient(fileName, this);
+                }
+                return;
+            }
+            if (knownVersion != null && currentRequest == null) {
+                out.println("VERSION " + version);
+            }
             if (fileLength == 0) {
-                out.println("END_OF_DATA");
+                if (currentRequest != null) {
+                    replyOpenData(file, fileName, version, 0, 0);
+                } else {
+                    out.println("END_OF_DATA");
+                }
                 return;
             }
 
-            if (startPosition < 0 || startPosition >= fileLength) {
-                out.println("Error: Start position is out of file bounds.");
+            if (startPosition > fileLength || (startPosition == fileLength && !writing)) {
+                if (writing) {
+                    lockManager.unlock(fileName, this);
+                }
+                replyError("Error: Start position is out of file bounds.");
                 return;
             }
 
             // Adjust readLength if it goes beyond the file's content.
-            if (startPosition + readLength > fileLength) {
+            if (readLength > fileLength - startPosition) {
                 readLength = fileLength - startPosition;
             }
 
             // Move the file pointer to the start position.
             file.seek(startPosition);
 
-            byte[] buffer = new byte[1024];
-            ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
-            long totalBytesRead = 0;
-
-            while (totalBytesRead < readLength) {
-                int bytesToRead = (int) Math.min(buffer.length, readLength - totalBytesRead);
-                int bytesRead = file.read(buffer, 0, bytesToRead);
-                if (bytesRead == -1) {
-                    break; // End of file reached.
+            if (currentRequest != null) {
+                replyOpenData(file, fileName, version, startPosition, readLength);
+                if ("r".equals(permission)) {
+                    lockManager.addReadClient(fileName, this);
                 }
-                outputBuffer.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
+                return;
             }
 
-            // Send the read data to the client.
-            out.println(outputBuffer.toString());
-            out.println("END_OF_DATA");
-            System.out.println("DONE");
-
-            // Add client to list
+            // The region goes to the socket in pieces, between the text before and after it.
+            writeLock.lock();
+            try {
+                sendText();
+                sendEscapedRegion(file, startPosition, readLength);
+                out.println();
+                out.println("END_OF_DATA");
+                sendText();
+            } finally {
+                writeLock.unlock();
+            }
             if ("r".equals(permission)) {
                 lockManager.addReadClient(fileName, this);
             }
         } catch (FileNotFoundException e) {
-            out.println("Error: File " + fileName + " not found.");
+            if (writing) {
+                lockManager.unlock(fileName, this);
+            }
+            replyError("Error: File " + fileName + " not found.");
         } catch (IOException e) {
-            out.println("Error reading file: " + e.getMessage());
+            if (writing) {
+                lockManager.unlock(fileName, this);
+            }
+            replyError("Error reading file: " + e.getMessage());
         }
     }
 
-    // handle write request
-    private void handleWrite(String[] commands) throws IOException {
-        String fileName = commands[1];
-
-        StringBuilder fileContent = new StringBuilder();
-        String line;
-        while (!(line = in.readLine()).equals("END_OF_DATA")) {
-            fileContent.append(line).append("\n");
-        }
-        if (fileContent.length() > 0) {
-            fileContent.deleteCharAt(fileContent.length() - 1);
+    private void replyNotModified(String version) throws IOException {
+        if (currentRequest == null) {
+            out.println("NOT_MODIFIED " + version);
+            return;
         }
-        String newContent = fileContent.toString();
+        byte[] payload = version.getBytes(StandardCharsets.UTF_8);
+        writeFrame(currentRequest.opcode, currentRequest.requestId, Frame.STATUS_NOT_MODIFIED, payload, 0,
+                payload.length);
+        replied = true;
+    }
 
-        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
-        try {
-            file.write(newContent.getBytes()); // overwrite file to new content
-            out.println("Data written to file: " + fileName);
-        } catch (IOException e) {
-            out.println("Error writing to file: " + e.getMessage());
-        } finally {
-            file.close();
-            lockManager.unlock(fileName);
-            lockManager.notifyReadClients(fileName);
+    private void replyOpenData(RandomAccessFile file, String fileName, String version, long position,
+            long readLength) throws IOException {
+        if (currentRequest.opcode == Frame.OPEN_STREAM) {
+            startStream(fileName, version, position, readLength);
+        } else if (readLength > Integer.MAX_VALUE) {
+            replyError("Error: Region is too large for a single frame, use a streaming OPEN.");
+        } else {
+            writeRegionFrame(currentRequest.opcode, currentRequest.requestId, Frame.STATUS_OK, file, fileName,
+                    version, position, readLength);
+            replied = true;
         }
     }
 
-    public void sendFileUpdate(String fileName) {
-        out.println("FILE_UPDATE:" + fileName);
-        try {
-            String fileContent = Files.readString(Paths.get(fileName));
-            out.println(fileContent);
-            out.println("END_OF_DATA");
-        } catch (IOException e) {
-            out.println("Error reading file: " + e.getMessage());
+    /**
+     * Streaming OPEN: the reply only carries the region length and the file's version
+     * (writeUTF). The data follows as
+     * CHUNK frames of at most --stream-chunk bytes, one per unit of credit granted by the
+     * client, so neither side ever holds more than its window of chunks. The last chunk
+     * has STATUS_END.
+     */
+    private void startStream(String fileName, String version, long position, long length) throws IOException {
+        int requestId = currentRequest.requestId;
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(reply);
+        data.writeLong(length);
+        data.writeUTF(version);
+        byte[] payload = reply.toByteArray();
+        writeFrame(Frame.OPEN_STREAM, requestId, Frame.STATUS_OK, payload, 0, payload.length);
+        replied = true;
+        if (length == 0) {
+            writeFrame(Frame.CHUNK, requestId, Frame.STATUS_END, new byte[0], 0, 0);
+            return;
         }
+        streams.put(requestId,
+                new OutgoingStream(new RandomAccessFile(fileName, "r"), fileName, version, position, length));
     }
 
-    private void closeResources() {
-        try {
-            if (in != null)
-                in.close();
-            if (out != null)
-                out.close();
-            if (clientSocket != null)
-                clientSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    // A negative credit cancels the stream; the client still gets an empty final chunk.
+    private void sendStreamChunks(int requestId, int credit) throws IOException {
+        OutgoingStream stream = streams.get(requestId);
+        if (stream == null) {
+            return; // Already finished, the credit arrived late.
+        }
+        if (credit < 0) {
+            stream.remaining = 0;
+            writeFrame(Frame.CHUNK, requestId, Frame.STATUS_END, new byte[0], 0, 0);
+        }
+        for (int i = 0; i < credit && stream.remaining > 0; i++) {
+            long count = Math.min(options.streamChunk, stream.remaining);
+            byte status = count == stream.remaining ? Frame.STATUS_END : Frame.STATUS_OK;
+            writeRegionFrame(Frame.CHUNK, requestId, status, stream.file, stream.fileName, stream.version,
+                    stream.position, count);
+            stream.position += count;
+            stream.remaining -= count;
+        }
+        if (stream.remaining == 0) {
+            streams.remove(requestId);
+            stream.file.close();
         }
     }
-}
-
-class LockManager {
-    private Set<String> lockedFiles = ConcurrentHashMap.newKeySet();
-    private Map<String, List<ClientHandler>> readClients = new ConcurrentHashMap<>();
 
-    public synchronized boolean tryLock(String fileName) {
-        return lockedFiles.add(fileName);
+    /**
+     * Writes one frame whose payload is a file region, copied by the kernel when zero-copy
+     * is on. On a connection that negotiated DEFLATE, regions of at least --compress-min
+     * bytes go deflated instead, unless that does not make them smaller.
+     */
+    private void writeRegionFrame(byte opcode, int requestId, byte status, RandomAccessFile file, String fileName,
+            String version, long position, long length) throws IOException {
+        if (deflate && length >= options.compressMin) {
+            byte[] deflated = deflatedRegion(file, fileName, version, position, length);
+            if (deflated != null) {
+                writeFrame(opcode, requestId, status, Frame.FLAG_DEFLATE, deflated, 0, deflated.length);
+                return;
+            }
+        }
+        writeLock.lock();
+        try {
+            rawOut.write(Frame.header(opcode, requestId, status, length));
+            if (options.zeroCopy || isCached(file) || isMapped(file)) {
+                rawOut.flush();
+                sendRegion(file, fileName, position, length);
+                return;
+            }
+            file.seek(position);
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int bytesRead = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("File shrank while it was being sent");
+                }
+                rawOut.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+            rawOut.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Null if deflating does not make the region smaller. Regions of one version of a
+    // file are deflated once and then taken from the compression cache.
+    private byte[] deflatedRegion(RandomAccessFile file, String fileName, String version, long position,
+            long length) throws IOException {
+        if (compressionCache != null) {
+            byte[] cached = compressionCache.get(fileName, version, position, length);
+            if (cached != null) {
+                return cached == CompressionCache.NOT_SMALLER ? null : cached;
+            }
+        }
+        byte[] deflated = Frame.deflate(readRegion(file, fileName, position, length));
+        if (compressionCache != null) {
+            compressionCache.put(fileName, version, position, length, deflated);
+        }
+        return deflated;
+    }
+
+    // A region copied into the heap, from wherever sendRegion would have sent it.
+    private byte[] readRegion(RandomAccessFile file, String fileName, long position, long length)
+            throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Region is too large to compress");
+        }
+        byte[] region = new byte[(int) length];
+        MappedFiles.Mapping mapping = isMapped(file) ? mappedFiles.acquire(fileName, file) : null;
+        if (mapping != null) {
+            try {
+                mapping.slice(position, length).get(region);
+            } finally {
+                mappedFiles.release(mapping);
+            }
+            return region;
+        }
+        if (isCached(file)) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream(region.length);
+            blockCache.copyTo(fileName, file, position, length, content, new byte[BlockCache.BLOCK_SIZE]);
+            return content.toByteArray();
+        }
+        file.seek(position);
+        file.readFully(region);
+        return region;
+    }
+
+    private static class OutgoingStream {
+        final RandomAccessFile file;
+        final String fileName;
+        final String version;
+        long position;
+        long remaining;
+
+        OutgoingStream(RandomAccessFile file, String fileName, String version, long position, long remaining) {
+            this.file = file;
+            this.fileName = fileName;
+            this.version = version;
+            this.position = position;
+            this.remaining = remaining;
+        }
+    }
+
+    private boolean isCached(RandomAccessFile file) throws IOException {
+        return blockCache != null && blockCache.accepts(file.length());
+    }
+
+    private boolean isMapped(RandomAccessFile file) throws IOException {
+        return mappedFiles != null && mappedFiles.accepts(file.length());
+    }
+
+    /**
+     * Sends a file region. Large files are written from their memory mapping when there
+     * is one and small files come out of the block cache; anything else goes without
+     * copying through the heap: transferTo lets the kernel move the bytes from the page
+     * cache to the socket (sendfile on Linux). Anything written before must already be
+     * flushed.
+     */
+    private void sendRegion(RandomAccessFile file, String fileName, long position, long count) throws IOException {
+        if (isMapped(file)) {
+            MappedFiles.Mapping mapping = mappedFiles.acquire(fileName, file);
+            if (mapping != null) {
+                sendMapped(mapping, position, count);
+                return;
+            }
+            // Over --mmap-limit with every mapping in use: send it like any other file.
+        }
+        if (isCached(file)) {
+            if (cacheBuffer == null) {
+                cacheBuffer = new byte[BlockCache.BLOCK_SIZE];
+            }
+            blockCache.copyTo(fileName, file, position, count, rawOut, cacheBuffer);
+            rawOut.flush();
+            return;
+        }
+        if (transport != null) {
+            transport.sendFileRegion(fileName, position, count);
+            return;
+        }
+        SocketChannel socketChannel = clientSocket.getChannel();
+        WritableByteChannel target = socketChannel != null ? socketChannel
+                : Channels.newChannel(clientSocket.getOutputStream());
+        FileChannel source = file.getChannel();
+        while (count > 0) {
+            long sent = source.transferTo(position, count, target);
+            if (sent <= 0 && position >= source.size()) {
+                throw new EOFException("File shrank while it was being sent");
+            }
+            position += sent;
+            count -= sent;
+        }
+    }
+
+    // Writes a slice of the mapping and gives the reference back once it is sent.
+    private void sendMapped(MappedFiles.Mapping mapping, long position, long count) throws IOException {
+        ByteBuffer slice;
+        try {
+            slice = mapping.slice(position, count);
+        } catch (IOException e) {
+            mappedFiles.release(mapping);
+            throw e;
+        }
+        if (transport != null) {
+            transport.sendMapped(slice, () -> mappedFiles.release(mapping));
+            return;
+        }
+        try {
+            SocketChannel socketChannel = clientSocket.getChannel();
+            WritableByteChannel target = socketChannel != null ? socketChannel
+                    : Channels.newChannel(clientSocket.getOutputStream());
+            while (slice.hasRemaining()) {
+                target.write(slice);
+            }
+        } finally {
+            mappedFiles.release(mapping);
+        }
+    }
+
+    // handle write request, the content follows on the next lines up to END_OF_DATA
+    private void handleWrite(String[] commands) {
+        pendingWriteFile = commands[1];
+        pendingWriteContent = new StringBuilder();
+    }
+
+    private void collectWriteLine(String line) throws IOException {
+        if (!line.equals("END_OF_DATA")) {
+            pendingWriteContent.append(line).append("\n");
+            return;
+        }
+        String fileName = pendingWriteFile;
+        StringBuilder fileContent = pendingWriteContent;
+        pendingWriteFile = null;
+        pendingWriteContent = null;
+
+        if (fileContent.length() > 0) {
+            fileContent.deleteCharAt(fileContent.length() - 1);
+        }
+        writeFile(fileName, fileContent.toString().getBytes());
+    }
+
+    /**
+     * Overwrites the file from its start. Like PATCH, only for a client holding a write
+     * lock that covers the new content: one whose lease ran out has lost its lock,
+     * maybe to another writer by now. Either way the WRITE ends the write and releases
+     * the client's locks on the file.
+     */
+    @SuppressWarnings("try") // The log hold only has to be closed once the change is applied.
+    private void writeFile(String fileName, byte[] newContent) throws IOException {
+        if (!lockManager.isLockedBy(fileName, this)) {
+            replyError("Error: File is not open for writing - " + fileName);
+            return;
+        }
+        if (!lockManager.isLockedBy(fileName, 0, newContent.length, this)) {
+            replyError("Error: Range 0-" + newContent.length + " is outside the locked region of " + fileName);
+            lockManager.unlock(fileName, this);
+            return;
+        }
+        long[] offsets = { 0 };
+        byte[][] patches = { newContent };
+        whenLogged(fileName, WriteAheadLog.patch(fileName, offsets, patches), log -> {
+            try (WriteAheadLog.Hold logged = WriteAheadLog.await(log);
+                    RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+                file.write(newContent); // overwrite file to new content
+                replicate(fileName, offsets, patches, "Data written to file: " + fileName);
+            } catch (IOException e) {
+                replyError("Error writing to file: " + e.getMessage());
+            } finally {
+                fileChanged(fileName);
+                lockManager.unlock(fileName, this);
+                lockManager.notifyReadClients(fileName);
+            }
+        });
+    }
+
+    /**
+     * Applies (offset, bytes) patches in place, so a CLOSE only uploads what changed.
+     * Payload: file name (writeUTF), patch count, then per patch its offset (long),
+     * length (int) and bytes. Every patch must fall inside a range this client locked
+     * with OPEN; otherwise nothing is written. Either way the PATCH ends the write and
+     * releases the client's locks on the file.
+     */
+    @SuppressWarnings("try") // The log hold only has to be closed once the change is applied.
+    private void handlePatch(DataInputStream payload) throws IOException {
+        String fileName = payload.readUTF();
+        if (!lockManager.isLockedBy(fileName, this)) {
+            replyError("Error: File is not open for writing - " + fileName);
+            return;
+        }
+        int count = payload.readInt();
+        long[] offsets = new long[count];
+        byte[][] patches = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = payload.readLong();
+            patches[i] = new byte[payload.readInt()];
+            payload.readFully(patches[i]);
+            if (!lockManager.isLockedBy(fileName, offsets[i], patches[i].length, this)) {
+                replyError("Error: Range " + offsets[i] + "-" + (offsets[i] + patches[i].length)
+                        + " is outside the locked region of " + fileName);
+                lockManager.unlock(fileName, this);
+                return;
+            }
+        }
+        whenLogged(fileName, WriteAheadLog.patch(fileName, offsets, patches), log -> {
+            try (WriteAheadLog.Hold logged = WriteAheadLog.await(log);
+                    RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+                for (int i = 0; i < count; i++) {
+                    file.seek(offsets[i]);
+                    file.write(patches[i]);
+                }
+                replicate(fileName, offsets, patches,
+                        "Data written to file: " + fileName + " (" + count + " range(s) patched)");
+            } catch (IOException e) {
+                replyError("Error writing to file: " + e.getMessage());
+            } finally {
+                fileChanged(fileName);
+                lockManager.unlock(fileName, this);
+                lockManager.notifyReadClients(fileName);
+            }
+        });
+    }
+
+    /**
+     * Forwards a write applied here to the replicas its OPEN named, if any. The lock is
+     * still held while it is sent, so a replica gets the writes of a region in the order
+     * this server applied them. The reply, written or an error if too few copies
+     * confirmed in time, is left to replicaWait: the handler returns at once and the
+     * lock and the log are released before the replicas answer.
+     */
+    private void replicate(String fileName, long[] offsets, byte[][] patches, String written) {
+        Replication replication = replications.remove(fileName);
+        if (replication == null) {
+            out.println(written);
+            return;
+        }
+        replicaWait = replication.forward(replicaLinks, Replication.payload(fileName, offsets, patches),
+                options.replicaTimeoutMillis).thenApply(copies -> copies < replication.quorum
+                        ? new DeferredReply(Frame.STATUS_ERROR, "Error: Write quorum not reached for " + fileName
+                                + " (" + copies + " of " + replication.quorum + " copies)")
+                        : new DeferredReply(Frame.STATUS_OK,
+                                written + ", " + copies + " of " + (replication.targets.size() + 1) + " copies"));
+    }
+
+    private static class DeferredReply {
+        final byte status;
+        final String text;
+
+        DeferredReply(byte status, String text) {
+            this.status = status;
+            this.text = text;
+        }
+    }
+
+    /**
+     * A write forwarded by the primary of the file, over a peer connection. The primary
+     * holds the lock there; here the span of the patches is locked for this connection
+     * while they are applied, so the write is refused while a local writer holds any
+     * part of it, and no local writer gets in while it is applied.
+     */
+    @SuppressWarnings("try") // The log hold only has to be closed once the change is applied.
+    private void handleReplicate(DataInputStream payload) throws IOException {
+        String fileName = payload.readUTF();
+        int count = payload.readInt();
+        long[] offsets = new long[count];
+        byte[][] patches = new byte[count][];
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        for (int i = 0; i < count; i++) {
+            offsets[i] = payload.readLong();
+            patches[i] = new byte[payload.readInt()];
+            payload.readFully(patches[i]);
+            start = Math.min(start, offsets[i]);
+            end = Math.max(end, offsets[i] + patches[i].length);
+        }
+        if (count > 0 && !lockManager.tryLock(fileName, start, Math.max(1, end - start), this)) {
+            replyDenied("Write access denied: " + fileName + " is open for writing on this replica.");
+            return;
+        }
+        whenLogged(fileName, WriteAheadLog.patch(fileName, offsets, patches), log -> {
+            try (WriteAheadLog.Hold logged = WriteAheadLog.await(log);
+                    RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+                for (int i = 0; i < count; i++) {
+                    file.seek(offsets[i]);
+                    file.write(patches[i]);
+                }
+                out.println("Replicated " + count + " range(s) of " + fileName);
+            } catch (IOException e) {
+                replyError("Error replicating " + fileName + ": " + e.getMessage());
+            } finally {
+                fileChanged(fileName);
+                lockManager.unlock(fileName, this);
+                lockManager.notifyReadClients(fileName);
+            }
+        });
+    }
+
+    // Before the lock is released, so the next OPEN sees neither the old blocks nor the old version.
+    private void fileChanged(String fileName) {
+        versions.changed(fileName);
+        namespaceChanged(fileName);
+        if (blockCache != null) {
+            blockCache.invalidate(fileName);
+        }
+        if (mappedFiles != null) {
+            mappedFiles.invalidate(fileName);
+        }
+        if (compressionCache != null) {
+            compressionCache.invalidate(fileName);
+        }
+    }
+
+    /**
+     * Queues new file content for this reader and returns at once; the update queue
+     * writes it out on the notify executor. The update is shared by every subscriber of
+     * the file and must not be modified.
+     */
+    public void sendFileUpdate(FileUpdate update) {
+        updates.offer(update);
+    }
+
+    // Called by the update queue. Writes the shared content as is, without a per-reader copy.
+    void writeFileUpdate(FileUpdate update) {
+        String fileName = update.fileName;
+        byte[] content = update.content;
+        try {
+            if (deflate && content.length >= options.compressMin && update.deflatedPayload() != null) {
+                byte[] payload = update.deflatedPayload();
+                writeFrame(Frame.FILE_UPDATE, 0, Frame.STATUS_OK, Frame.FLAG_DEFLATE, payload, 0, payload.length);
+                return;
+            }
+            if (binary) {
+                sendBinaryFileUpdate(fileName, content);
+                return;
+            }
+            writeLock.lock();
+            try {
+                connectionOut.println(PUSH_MARK + "FILE_UPDATE:" + fileName);
+                if (needsEscaping(content)) {
+                    writeEscaped(rawOut, content, 0, content.length, true);
+                } else {
+                    writeShared(content);
+                }
+                connectionOut.println();
+                connectionOut.println("END_OF_DATA");
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            System.out.println("Error sending update for " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    // Pushed with request id 0; the payload is the file name (writeUTF) followed by the content.
+    private void sendBinaryFileUpdate(String fileName, byte[] content) throws IOException {
+        ByteArrayOutputStream name = new ByteArrayOutputStream();
+        new DataOutputStream(name).writeUTF(fileName);
+        writeLock.lock();
+        try {
+            rawOut.write(Frame.header(Frame.FILE_UPDATE, 0, Frame.STATUS_OK, name.size() + content.length));
+            name.writeTo(rawOut);
+            writeShared(content);
+            rawOut.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /*
+     * Text connections mark pushes with PUSH_MARK at the start of their first line. To keep
+     * that unambiguous, every other line sent on a text connection that starts with
+     * PUSH_MARK gets a second one in front, which the client drops (byte stuffing, like the
+     * leading dot of SMTP). Text replies are escaped in sendText, file data on the way out.
+     */
+    static String escapeLines(String text) {
+        if (text.indexOf(PUSH_MARK) < 0) {
+            return text;
+        }
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+        boolean lineStart = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (lineStart && c == PUSH_MARK) {
+                escaped.append(PUSH_MARK);
+            }
+            escaped.append(c);
+            lineStart = c == '\n';
+        }
+        return escaped.toString();
+    }
+
+    private static boolean needsEscaping(byte[] content) {
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == PUSH_MARK && (i == 0 || content[i - 1] == '\n')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns whether the next byte after these starts a line.
+    private static boolean writeEscaped(OutputStream target, byte[] bytes, int offset, int length, boolean lineStart)
+            throws IOException {
+        int from = offset;
+        for (int i = offset; i < offset + length; i++) {
+            if (lineStart && bytes[i] == PUSH_MARK) {
+                target.write(bytes, from, i - from);
+                target.write(PUSH_MARK);
+                from = i;
+            }
+            lineStart = bytes[i] == '\n';
+        }
+        target.write(bytes, from, offset + length - from);
+        return lineStart;
+    }
+
+    // A file region on a text connection. It is read through the heap rather than sent
+    // with zero-copy, since lines starting with PUSH_MARK are escaped on the way.
+    private void sendEscapedRegion(RandomAccessFile file, long position, long count) throws IOException {
+        file.seek(position);
+        byte[] buffer = new byte[64 * 1024];
+        boolean lineStart = true;
+        while (count > 0) {
+            int read = file.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read == -1) {
+                throw new EOFException("File shrank while it was being sent");
+            }
+            lineStart = writeEscaped(rawOut, buffer, 0, read, lineStart);
+            count -= read;
+        }
+        rawOut.flush();
+    }
+
+    // The NIO engine queues the shared array itself instead of copying it into its buffer.
+    private void writeShared(byte[] content) throws IOException {
+        if (transport != null) {
+            transport.sendShared(content);
+        } else {
+            rawOut.write(content);
+        }
+    }
+
+    // False while the NIO engine still has a large backlog of unsent bytes for this connection.
+    boolean canTakeUpdate() {
+        return transport == null || !transport.isBacklogged();
+    }
+
+    // The NIO engine calls this once a backlog has been written out.
+    void backlogDrained() {
+        updates.resume();
+    }
+
+    // Slow consumer policy "disconnect": dropping the socket also ends the reading side.
+    void disconnect(String reason) {
+        System.out.println("Disconnecting client: " + reason);
+        try {
+            if (transport != null) {
+                transport.close();
+            } else {
+                clientSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Called once the connection is gone, whichever engine served it.
+    void connectionClosed() {
+        if (lockWait != null) {
+            lockManager.cancelWaits(this); // Before release, so nothing is granted afterwards.
+        }
+        lockManager.release(this);
+        for (OutgoingStream stream : streams.values()) {
+            try {
+                stream.file.close();
+            } catch (IOException e) {
+                // Nothing more to send from it anyway.
+            }
+        }
+        streams.clear();
+        replications.clear();
+        replicaWait = null;
+        if (logWait != null) {
+            // The change is dropped unapplied; it was never acknowledged, so a replay of
+            // its record after a crash is as valid an outcome as its loss.
+            logWait.thenAccept(WriteAheadLog.Hold::close);
+            logWait = null;
+            loggedChange = null;
+        }
+    }
+
+    private void closeResources() {
+        connectionClosed();
+        try {
+            if (in != null)
+                in.close();
+            if (connectionOut != null)
+                connectionOut.close();
+            if (clientSocket != null)
+                clientSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/**
+ * What a ClientHandler needs from the NIO engine besides its output stream: queueing
+ * file regions behind earlier replies for transferTo, and backpressure for pushes.
+ */
+interface NioTransport {
+    void sendFileRegion(String fileName, long position, long count) throws IOException;
+
+    // Queues a slice of a memory mapping; release runs once it is sent or the connection is gone.
+    void sendMapped(ByteBuffer slice, Runnable release);
+
+    // The array must not change afterwards; it is written out without a copy.
+    void sendShared(byte[] content);
+
+    boolean isBacklogged();
+
+    void close();
+}
+
+/**
+ * Bounded queue of FILE_UPDATE pushes for one connection. Updates are written by a
+ * task on the notify executor, so a reader with a full TCP window only holds up its
+ * own queue, never the writer or the other readers. When the queue is full the
+ * --slow-consumer policy applies:
+ *
+ *   coalesce    a pending update of the same file is replaced by the newer one;
+ *               otherwise the oldest pending update makes room
+ *   drop        the new update is dropped
+ *   disconnect  the connection is closed
+ */
+class UpdateQueue {
+    private final ClientHandler handler;
+    private final Executor executor;
+    private final int capacity;
+    private final String policy;
+    private final ArrayDeque<PendingUpdate> pending = new ArrayDeque<>();
+    private boolean draining;
+
+    UpdateQueue(ClientHandler handler, Executor executor, ServerOptions options) {
+        this.handler = handler;
+        this.executor = executor;
+        this.capacity = options.updateQueue;
+        this.policy = options.slowConsumer;
+    }
+
+    void offer(FileUpdate update) {
+        synchronized (this) {
+            if ("coalesce".equals(policy) && replacePending(update)) {
+                return;
+            }
+            if (pending.size() >= capacity) {
+                if ("disconnect".equals(policy)) {
+                    pending.clear();
+                    executor.execute(() -> handler.disconnect("update queue full"));
+                    return;
+                }
+                if ("drop".equals(policy)) {
+                    System.out.println("Update queue full, dropping update for " + update.fileName);
+                    return;
+                }
+                pending.poll();
+            }
+            pending.add(new PendingUpdate(update));
+        }
+        resume();
+    }
+
+    private boolean replacePending(FileUpdate update) {
+        for (PendingUpdate queued : pending) {
+            if (queued.update.fileName.equals(update.fileName)) {
+                queued.update = update;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Starts a drain task unless one is running or there is nothing to send.
+    void resume() {
+        synchronized (this) {
+            if (draining || pending.isEmpty()) {
+                return;
+            }
+            draining = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    private void drain() {
+        while (true) {
+            PendingUpdate next;
+            synchronized (this) {
+                if (pending.isEmpty() || !handler.canTakeUpdate()) {
+                    draining = false;
+                    return;
+                }
+                next = pending.poll();
+            }
+            handler.writeFileUpdate(next.update);
+        }
+    }
+
+    private static class PendingUpdate {
+        FileUpdate update;
+
+        PendingUpdate(FileUpdate update) {
+            this.update = update;
+        }
+    }
+}
+
+/**
+ * New content of a file on its way to every subscriber. The content is read once for
+ * all of them, and the deflated FILE_UPDATE payload is made once, by the first
+ * connection that negotiated DEFLATE.
+ */
+class FileUpdate {
+    final String fileName;
+    final byte[] content;
+    private byte[] deflated;
+    private boolean deflatedDone;
+
+    FileUpdate(String fileName, byte[] content) {
+        this.fileName = fileName;
+        this.content = content;
+    }
+
+    // The file name (writeUTF) and content, deflated; null if that does not make them smaller.
+    synchronized byte[] deflatedPayload() throws IOException {
+        if (!deflatedDone) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(content.length + 64);
+            new DataOutputStream(payload).writeUTF(fileName);
+            payload.write(content);
+            deflated = Frame.deflate(payload.toByteArray());
+            deflatedDone = true;
+        }
+        return deflated;
+    }
+}
+
+/**
+ * In-memory tree of the namespace under the directory the server runs in, so existence
+ * checks and LS are answered without a system call. Built at startup by a parallel
+ * scan, kept current by the server's own changes, which refresh their path at once,
+ * and by a WatchService for changes made outside the server, which show up once the
+ * watcher has seen them. Paths outside the tree or through symbolic links are left to
+ * the file system.
+ */
+class NamespaceIndex implements AutoCloseable {
+    static final byte FILE = 0;
+    static final byte DIRECTORY = 1;
+    static final byte OTHER = 2;
+
+    static class Node {
+        final String name;
+        final byte type;
+        volatile long size;
+        volatile long modified;
+        // Sorted by name, so LS pages come straight from it; null unless a directory.
+        private final ConcurrentSkipListMap<String, Node> children;
+
+        Node(String name, byte type, long size, long modified) {
+            this.name = name;
+            this.type = type;
+            this.size = size;
+            this.modified = modified;
+            this.children = type == DIRECTORY ? new ConcurrentSkipListMap<>() : null;
+        }
+
+        boolean isDirectory() {
+            return type == DIRECTORY;
+        }
+
+        boolean isFile() {
+            return type == FILE;
+        }
+
+        ConcurrentSkipListMap<String, Node> children() {
+            return children;
+        }
+    }
+
+    // Returned by lookup for a path the index knows does not exist.
+    static final Node MISSING = new Node("", OTHER, 0, 0);
+
+    private final Path root;
+    private final Node top;
+    private final AtomicLong entries = new AtomicLong();
+    private final WatchService watcher; // null without --index-watch
+    private final Map<WatchKey, Path> watched = new ConcurrentHashMap<>();
+    private final AtomicBoolean watchFailed = new AtomicBoolean();
+    private String built = "";
+
+    private NamespaceIndex(Path root, boolean watch) throws IOException {
+        this.root = root;
+        this.top = new Node("", DIRECTORY, 0, 0);
+        this.watcher = watch ? root.getFileSystem().newWatchService() : null;
+    }
+
+    /**
+     * Scans the tree under root with one thread per processor and starts the watcher.
+     * Prints the entry count, the time the scan took and the heap the tree takes per
+     * entry, as estimated by footprint.
+     */
+    static NamespaceIndex build(Path root, boolean watch) throws IOException {
+        NamespaceIndex index = new NamespaceIndex(root.toAbsolutePath().normalize(), watch);
+        long start = System.nanoTime();
+        ExecutorService scanners = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            index.scanTree(index.root, index.top, scanners);
+        } finally {
+            scanners.shutdown();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long count = Math.max(1, index.entries.get());
+        index.built = "built in " + millis + " ms, about " + footprint(index.top) / count + " bytes per entry";
+        System.out.println("Namespace index: " + index.entries.get() + " entries, " + index.built);
+        if (watch) {
+            Thread watchThread = new Thread(index::watch, "namespace-watcher");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        }
+        return index;
+    }
+
+    String stats() {
+        return entries.get() + " entries, " + built;
+    }
+
+    // The node at a path; MISSING if the index knows there is none, null if it cannot tell.
+    Node lookup(String path) {
+        Path absolute;
+        try {
+            absolute = Paths.get(path).toAbsolutePath().normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!absolute.startsWith(root)) {
+            return null;
+        }
+        Node node = top;
+        if (absolute.equals(root)) {
+            return node;
+        }
+        for (Path name : root.relativize(absolute)) {
+            if (node.type == OTHER) {
+                return null; // A symbolic link, or something else the index does not follow.
+            }
+            if (node.type == FILE) {
+                return MISSING;
+            }
+            Node child = node.children.get(name.toString());
+            if (child == null) {
+                return MISSING;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    void refresh(String path) {
+        try {
+            refresh(Paths.get(path).toAbsolutePath().normalize());
+        } catch (InvalidPathException e) {
+            // Not a path the index could hold.
+        }
+    }
+
+    // Reads one path again, adding, updating or removing its node, and updates its parent's times.
+    private void refresh(Path path) {
+        if (!path.startsWith(root) || path.equals(root)) {
+            return;
+        }
+        Path parentPath = path.getParent();
+        Node parent = lookup(parentPath.toString());
+        if (parent == null || !parent.isDirectory()) {
+            return; // Under a directory the index does not hold yet; added with it.
+        }
+        Node parentNow = stat(parentPath);
+        if (parentNow != null) {
+            parent.size = parentNow.size;
+            parent.modified = parentNow.modified;
+        }
+        String name = path.getFileName().toString();
+        Node current = stat(path);
+        Node existing = parent.children.get(name);
+        if (current == null) {
+            if (existing != null && parent.children.remove(name, existing)) {
+                entries.addAndGet(-count(existing));
+            }
+            return;
+        }
+        if (existing != null && existing.type == current.type) {
+            existing.size = current.size;
+            existing.modified = current.modified;
+            return;
+        }
+        if (existing != null ? parent.children.replace(name, existing, current)
+                : parent.children.putIfAbsent(name, current) == null) {
+            entries.addAndGet(1 - (existing != null ? count(existing) : 0));
+            if (current.isDirectory()) {
+                scanTree(path, current, Runnable::run); // Moved in from outside, possibly with contents.
+            }
+        }
+    }
+
+    private static long count(Node node) {
+        long count = 1;
+        if (node.isDirectory()) {
+            for (Node child : node.children.values()) {
+                count += count(child);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The heap a subtree takes, estimated from its structures as a 64-bit JVM with
+     * compressed references lays them out: per entry the Node (40 bytes), its name
+     * String (24) and that String's array, the skip list node holding it in its parent
+     * (24) and half an index node on average (12), and per directory its own skip list
+     * with its head nodes and values view (112). A class histogram of a built index
+     * agrees; unlike a heap delta around a GC, this needs no GC at startup.
+     */
+    private static long footprint(Node node) {
+        long bytes = 40 + 24 + align(16 + nameBytes(node.name)) + 24 + 12;
+        if (node.isDirectory()) {
+            bytes += 112;
+            for (Node child : node.children.values()) {
+                bytes += footprint(child);
+            }
+        }
+        return bytes;
+    }
+
+    // A String stores one byte per char unless a char needs two.
+    private static int nameBytes(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) > 0xFF) {
+                return 2 * name.length();
+            }
+        }
+        return name.length();
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private static Node stat(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            byte type = attrs.isDirectory() ? DIRECTORY : attrs.isRegularFile() ? FILE : OTHER;
+            Path name = path.getFileName();
+            return new Node(name != null ? name.toString() : "", type, attrs.size(),
+                    attrs.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Fills in a directory's subtree on the executor and returns when all of it is read.
+    private void scanTree(Path directory, Node node, Executor executor) {
+        AtomicInteger pending = new AtomicInteger(1);
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        executor.execute(() -> scan(directory, node, executor, pending, done));
+        done.join();
+    }
+
+    private void scan(Path directory, Node node, Executor executor, AtomicInteger pending,
+            CompletableFuture<Void> done) {
+        try {
+            register(directory);
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path entry : children) {
+                    Node child = stat(entry);
+                    if (child == null || node.children.putIfAbsent(child.name, child) != null) {
+                        continue;
+                    }
+                    entries.incrementAndGet();
+                    if (child.isDirectory()) {
+                        pending.incrementAndGet();
+                        executor.execute(() -> scan(entry, child, executor, pending, done));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Unreadable, or removed meanwhile: kept as far as it was read.
+        } finally {
+            if (pending.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+    }
+
+    private void register(Path directory) {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watched.put(directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), directory);
+        } catch (IOException e) {
+            if (watchFailed.compareAndSet(false, true)) {
+                System.out.println("Namespace index: cannot watch " + directory + " (" + e.getMessage()
+                        + "); changes made outside the server there are missed");
+            }
+        }
+    }
+
+    // Runs on the watcher thread until the index is closed.
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = watched.get(key);
+            if (directory != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan(directory);
+                    } else {
+                        refresh(directory.resolve((Path) event.context()));
+                    }
+                }
+            }
+            if (!key.reset()) {
+                watched.remove(key);
+            }
+        }
+    }
+
+    // After events were lost: every entry on disk is read again and the ones gone are dropped.
+    private void rescan(Path directory) {
+        Node node = lookup(directory.toString());
+        if (node == null || !node.isDirectory()) {
+            return;
+        }
+        Set<String> present = new HashSet<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+            for (Path entry : children) {
+                present.add(entry.getFileName().toString());
+                refresh(entry);
+            }
+        } catch (IOException e) {
+            return;
+        }
+        for (String name : node.children.keySet()) {
+            if (!present.contains(name)) {
+                refresh(directory.resolve(name));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+}
+
+/**
+ * Lists directories for LS page by page. Directories are read with DirectoryStream,
+ * and a page only ever keeps the limit smallest names after its cursor, so listing a
+ * directory of any size takes the memory of one page; each page reads the directory
+ * again. Recursive listings walk subdirectories in parallel on a fixed number of
+ * threads shared by every connection, and skip subtrees that cannot add to the page.
+ * Directories the namespace index holds are listed from it instead, without a system
+ * call; their children are kept in name order, so a page is found without a scan.
+ */
+class DirectoryLister {
+    static final Set<String> ATTRIBUTES = Set.of("size", "mtime", "type", "version");
+
+    private final FileVersions versions;
+    private final NamespaceIndex index; // null with --index=false
+    private final ExecutorService walkers;
+
+    DirectoryLister(FileVersions versions, NamespaceIndex index, int parallelism) {
+        this.versions = versions;
+        this.index = index;
+        this.walkers = Executors.newFixedThreadPool(parallelism, task -> {
+            Thread thread = new Thread(task, "ls-walker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static class Page {
+        final List<String> lines;
+        final String next; // The cursor of the next page; null on the last one.
+
+        Page(List<String> lines, String next) {
+            this.lines = lines;
+            this.next = next;
+        }
+    }
+
+    // The names after cursor, in name order, at most limit of them unless limit is 0.
+    private static class Selection {
+        private final int limit;
+        private final String cursor;
+        private final TreeMap<String, String> lines = new TreeMap<>();
+        private boolean more;
+
+        Selection(int limit, String cursor) {
+            this.limit = limit;
+            this.cursor = cursor;
+        }
+
+        synchronized boolean accepts(String name) {
+            if (cursor != null && name.compareTo(cursor) <= 0) {
+                return false;
+            }
+            if (limit > 0 && lines.size() >= limit && name.compareTo(lines.lastKey()) > 0) {
+                more = true;
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void add(String name, String line) {
+            if (accepts(name)) {
+                lines.put(name, line);
+                if (limit > 0 && lines.size() > limit) {
+                    lines.pollLastEntry();
+                    more = true;
+                }
+            }
+        }
+
+        // Whether a subtree, whose names all start with prefix, can add to the page.
+        synchronized boolean mayContain(String prefix) {
+            if (cursor != null && cursor.compareTo(prefix) > 0 && !cursor.startsWith(prefix)) {
+                return false;
+            }
+            if (limit > 0 && lines.size() >= limit && prefix.compareTo(lines.lastKey()) >= 0) {
+                more = true;
+                return false;
+            }
+            return true;
+        }
+
+        synchronized Page page() {
+            return new Page(new ArrayList<>(lines.values()), more ? lines.lastKey() : null);
+        }
+    }
+
+    // Every entry of a directory in the order it is read, for an LS without limit.
+    void stream(Path directory, List<String> attributes, Consumer<String> lines) throws IOException {
+        NamespaceIndex.Node node = indexed(directory);
+        if (node != null) {
+            for (NamespaceIndex.Node child : node.children().values()) {
+                lines.accept(describe(directory.resolve(child.name), child.name, child, attributes));
+            }
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String line = describe(entry, entry.getFileName().toString(), attributes);
+                if (line != null) {
+                    lines.accept(line);
+                }
+            }
+        }
+    }
+
+    Page list(Path directory, int limit, String cursor, boolean recursive, List<String> attributes)
+            throws IOException {
+        Selection selection = new Selection(limit, cursor);
+        NamespaceIndex.Node node = indexed(directory);
+        if (node != null && !recursive) {
+            // Children are sorted, so the page is the next limit names after the cursor.
+            ConcurrentNavigableMap<String, NamespaceIndex.Node> after = cursor != null
+                    ? node.children().tailMap(cursor, false)
+                    : node.children();
+            List<String> lines = new ArrayList<>();
+            String last = null;
+            for (NamespaceIndex.Node child : after.values()) {
+                if (limit > 0 && lines.size() == limit) {
+                    return new Page(lines, last);
+                }
+                lines.add(describe(directory.resolve(child.name), child.name, child, attributes));
+                last = child.name;
+            }
+            return new Page(lines, null);
+        }
+        if (node != null) {
+            walkIndex(directory, node, "", selection, attributes);
+            return selection.page();
+        }
+        if (!recursive) {
+            scan(directory, "", selection, attributes, null);
+            return selection.page();
+        }
+        AtomicInteger pending = new AtomicInteger(1);
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        walkers.execute(() -> walk(directory, "", selection, attributes, pending, done));
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while listing " + directory);
+        }
+        return selection.page();
+    }
+
+    // Lists one directory of a recursive listing and queues its subdirectories; the last one to finish completes done.
+    private void walk(Path directory, String prefix, Selection selection, List<String> attributes,
+            AtomicInteger pending, CompletableFuture<Void> done) {
+        try {
+            scan(directory, prefix, selection, attributes, (subdirectory, name) -> {
+                if (selection.mayContain(name + "/")) {
+                    pending.incrementAndGet();
+                    walkers.execute(() -> walk(subdirectory, name + "/", selection, attributes, pending, done));
+                }
+            });
+        } catch (IOException e) {
+            if (prefix.isEmpty()) {
+                done.completeExceptionally(e);
+            }
+            // A subdirectory removed meanwhile is left out.
+        } finally {
+            if (pending.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+    }
+
+    // The index node of a directory; null if the index cannot tell and the disk is read instead.
+    private NamespaceIndex.Node indexed(Path directory) {
+        NamespaceIndex.Node node = index != null ? index.lookup(directory.toString()) : null;
+        return node != null && node.isDirectory() ? node : null;
+    }
+
+    private void walkIndex(Path directory, NamespaceIndex.Node node, String prefix, Selection selection,
+            List<String> attributes) {
+        for (NamespaceIndex.Node child : node.children().values()) {
+            String name = prefix + child.name;
+            Path entry = directory.resolve(child.name);
+            if (selection.accepts(name)) {
+                selection.add(name, describe(entry, name, child, attributes));
+            }
+            if (child.isDirectory() && selection.mayContain(name + "/")) {
+                walkIndex(entry, child, name + "/", selection, attributes);
+            }
+        }
+    }
+
+    private interface Subdirectories {
+        void found(Path directory, String name);
+    }
+
+    private void scan(Path directory, String prefix, Selection selection, List<String> attributes,
+            Subdirectories subdirectories) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = prefix + entry.getFileName();
+                boolean accepted = selection.accepts(name);
+                if (!accepted && subdirectories == null) {
+                    continue;
+                }
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue; // Removed meanwhile.
+                }
+                if (accepted) {
+                    selection.add(name, describe(entry, name, attrs, attributes));
+                }
+                if (subdirectories != null && attrs.isDirectory()) {
+                    subdirectories.found(entry, name);
+                }
+            }
+        }
+    }
+
+    // The LS line of an entry; null if it was removed meanwhile.
+    String describe(Path entry, String name, List<String> attributes) throws IOException {
+        if (attributes.isEmpty()) {
+            return name;
+        }
+        try {
+            return describe(entry, name,
+                    Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS), attributes);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private String describe(Path entry, String name, BasicFileAttributes attrs, List<String> attributes) {
+        return describe(entry, name, attrs.isDirectory(), attrs.isRegularFile(), attrs.size(),
+                attrs.lastModifiedTime().toMillis(), attributes);
+    }
+
+    private String describe(Path entry, String name, NamespaceIndex.Node node, List<String> attributes) {
+        return describe(entry, name, node.isDirectory(), node.isFile(), node.size, node.modified, attributes);
+    }
+
+    private String describe(Path entry, String name, boolean directory, boolean file, long size, long modified,
+            List<String> attributes) {
+        StringBuilder line = new StringBuilder(name);
+        for (String attribute : attributes) {
+            line.append('\t');
+            switch (attribute) {
+                case "size":
+                    line.append(size);
+                    break;
+                case "mtime":
+                    line.append(modified);
+                    break;
+                case "type":
+                    line.append(directory ? "dir" : file ? "file" : "other");
+                    break;
+                default: // version
+                    line.append(file ? versions.versionOf(entry.toString(), modified, size) : "-");
+                    break;
+            }
+        }
+        return line.toString();
+    }
+}
+
+/**
+ * Write-ahead log of the changes clients make: WRITE, PATCH and REPLICATE data and
+ * CREATE_FILE, CREATE_DIR and DELETE. A change is logged and forced to disk before it
+ * is applied, so the files themselves never need a force per write. Changes logged
+ * while a force is running, or within the window of the first one, share the next
+ * force (group commit), so durable writes scale with the number of writers instead of
+ * being capped at one force each. The forces run on a flusher thread of their own:
+ * logging a change only appends it and returns a future, so neither an NIO event loop
+ * nor a virtual thread is held up by the window or the force.
+ *
+ * Applied changes only reach the page cache. Once the log passes the checkpoint size,
+ * a background checkpoint forces the changed files and empties the log. At startup
+ * whatever the log still holds is applied again; every record can be, whether or not
+ * it was applied before the crash.
+ */
+class WriteAheadLog implements AutoCloseable {
+    static final byte PATCH = 1;
+    static final byte CREATE_FILE = 2;
+    static final byte CREATE_DIR = 3;
+    static final byte DELETE = 4;
+
+    /** Held from logging a change until it has been applied; close it then. */
+    interface Hold extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final Hold NOT_LOGGED = () -> {
+    };
+
+    private final FileChannel channel; // null when nothing is logged
+    private final long windowNanos;
+    private final long checkpointBytes;
+    private final Set<String> changedFiles = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
+    private final ExecutorService checkpointer;
+    private final Thread flusher;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition recordsAppended = lock.newCondition();
+    private final Condition changesApplied = lock.newCondition();
+    // Guarded by lock.
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private final List<CompletableFuture<Void>> unforced = new ArrayList<>();
+    // Changes from logging to applying. A checkpoint waits for none to be left, so no
+    // record is dropped from the log before its change reached the file.
+    private int inFlight;
+    // Set while a checkpoint runs; changes logged meanwhile wait for it to complete.
+    private CompletableFuture<Void> checkpointDone;
+    private IOException failure;
+    private long size;
+    private boolean closed;
+
+    // Logs nothing; every change is applied right away.
+    WriteAheadLog() {
+        channel = null;
+        windowNanos = 0;
+        checkpointBytes = 0;
+        checkpointer = null;
+        flusher = null;
+    }
+
+    private WriteAheadLog(FileChannel channel, long windowMillis, long checkpointBytes) {
+        this.channel = channel;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.checkpointBytes = checkpointBytes;
+        this.checkpointer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "wal-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher = new Thread(this::flush, "wal-flusher");
+        flusher.setDaemon(true);
+    }
+
+    // Opens the log, replays what a crash left in it and empties it.
+    static WriteAheadLog open(String fileName, long windowMillis, long checkpointBytes) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        WriteAheadLog wal = new WriteAheadLog(channel, windowMillis, checkpointBytes);
+        int replayed = wal.replay();
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " change(s) from the write-ahead log " + fileName);
+        }
+        wal.checkpoint();
+        wal.flusher.start();
+        return wal;
+    }
+
+    static byte[] record(byte type, String fileName) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try {
+            DataOutputStream data = new DataOutputStream(record);
+            data.writeByte(type);
+            data.writeUTF(fileName);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Not thrown by a ByteArrayOutputStream.
+        }
+        return record.toByteArray();
+    }
+
+    // The PATCH record is the REPLICATE payload behind the type.
+    static byte[] patch(String fileName, long[] offsets, byte[][] patches) {
+        byte[] payload = Replication.payload(fileName, offsets, patches);
+        byte[] record = new byte[payload.length + 1];
+        record[0] = PATCH;
+        System.arraycopy(payload, 0, record, 1, payload.length);
+        return record;
+    }
+
+    /**
+     * Logs a change to fileName. The future completes once the record is on disk, with
+     * the hold to close when the change has been applied, or fails if the log could not
+     * be forced; after that every change fails, as the log no longer matches what the
+     * files will look like after a crash.
+     */
+    CompletableFuture<Hold> log(String fileName, byte[] record) {
+        if (channel == null) {
+            return CompletableFuture.completedFuture(NOT_LOGGED);
+        }
+        CompletableFuture<Void> forced = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failed());
+            }
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("Write-ahead log is closed"));
+            }
+            if (checkpointDone != null) {
+                return checkpointDone.thenCompose(done -> log(fileName, record));
+            }
+            inFlight++;
+            changedFiles.add(fileName);
+            // Length, CRC32 and the record, so a record torn by a crash is recognized.
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(record.length).putInt((int) crc.getValue());
+            batch.write(header.array(), 0, 8);
+            batch.write(record, 0, record.length);
+            unforced.add(forced);
+            recordsAppended.signal();
+        } finally {
+            lock.unlock();
+        }
+        return forced.thenApply(done -> this::applied);
+    }
+
+    // Waits for a logged record to be forced, for callers that can block.
+    static Hold await(CompletableFuture<Hold> logged) throws IOException {
+        try {
+            return logged.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private IOException failed() {
+        return new IOException("Write-ahead log failed: " + failure.getMessage(), failure);
+    }
+
+    private void applied() {
+        boolean full;
+        lock.lock();
+        try {
+            if (--inFlight == 0) {
+                changesApplied.signalAll();
+            }
+            full = size >= checkpointBytes;
+        } finally {
+            lock.unlock();
+        }
+        if (full && checkpointing.compareAndSet(false, true)) {
+            checkpointer.execute(() -> {
+                checkpoint();
+                checkpointing.set(false);
+            });
+        }
+    }
+
+    // The flusher thread: waits for records, lets the window fill, then writes and forces
+    // everything appended so far and completes the futures of those records.
+    private void flush() {
+        while (true) {
+            byte[] records;
+            List<CompletableFuture<Void>> batched;
+            lock.lock();
+            try {
+                while (batch.size() == 0 && !closed) {
+                    recordsAppended.awaitUninterruptibly();
+                }
+                if (batch.size() == 0) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (windowNanos > 0) {
+                LockSupport.parkNanos(windowNanos); // Let more writers join this force.
+            }
+            lock.lock();
+            try {
+                records = batch.toByteArray();
+                batch.reset();
+                batched = new ArrayList<>(unforced);
+                unforced.clear();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(records);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                fail(e, batched);
+                return;
+            }
+            lock.lock();
+            try {
+                size += records.length;
+            } finally {
+                lock.unlock();
+            }
+            for (CompletableFuture<Void> forced : batched) {
+                forced.complete(null);
+            }
+        }
+    }
+
+    // Fails the records in hand and, as failure is set first, any appended meanwhile.
+    private void fail(IOException e, List<CompletableFuture<Void>> batched) {
+        lock.lock();
+        try {
+            failure = e;
+            batched.addAll(unforced);
+            unforced.clear();
+            batch.reset();
+            inFlight -= batched.size(); // Never applied, so never closed.
+            if (inFlight == 0) {
+                changesApplied.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        IOException failed = failed();
+        for (CompletableFuture<Void> forced : batched) {
+            forced.completeExceptionally(failed);
+        }
+    }
+
+    // Applies the records of a log left by a crash, up to the first torn or corrupt one.
+    private int replay() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        long remaining = channel.size();
+        int replayed = 0;
+        while (remaining >= 8) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0 || length > remaining - 8) {
+                break;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(record);
+            replayed++;
+            remaining -= 8 + length;
+        }
+        return replayed;
+    }
+
+    private void apply(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String fileName = in.readUTF();
+        changedFiles.add(fileName);
+        // A change that failed when it was made, e.g. in a missing directory, fails the same way again.
+        try {
+            switch (type) {
+                case PATCH:
+                    try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            file.seek(in.readLong());
+                            byte[] patch = new byte[in.readInt()];
+                            in.readFully(patch);
+                            file.write(patch);
+                        }
+                    }
+                    break;
+                case CREATE_FILE:
+                    new File(fileName).createNewFile();
+                    break;
+                case CREATE_DIR:
+                    new File(fileName).mkdir();
+                    break;
+                case DELETE:
+                    new File(fileName).delete();
+                    break;
+                default:
+                    throw new IOException("Unknown write-ahead log record type " + type);
+            }
+        } catch (FileNotFoundException e) {
+            // Skipped, as above.
+        }
+    }
+
+    // Forces the changed files, then empties the log. Changes logged meanwhile wait for
+    // it without holding up their thread, and those in flight are applied first.
+    private void checkpoint() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        lock.lock();
+        try {
+            checkpointDone = done;
+            while (inFlight > 0) {
+                changesApplied.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            for (String fileName : changedFiles) {
+                forceFile(fileName);
+            }
+            changedFiles.clear();
+            channel.truncate(0);
+            channel.force(true);
+            lock.lock();
+            try {
+                size = 0;
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            System.out.println("Write-ahead log checkpoint failed: " + e.getMessage());
+        } finally {
+            lock.lock();
+            try {
+                checkpointDone = null;
+            } finally {
+                lock.unlock();
+            }
+            done.complete(null);
+        }
+    }
+
+    // The file, if it still exists, and the directory naming it, for creates and deletes.
+    private static void forceFile(String fileName) throws IOException {
+        Path path = Paths.get(fileName).toAbsolutePath();
+        for (Path target : new Path[] { path, path.getParent() }) {
+            if (target == null || !Files.exists(target)) {
+                continue;
+            }
+            try (FileChannel file = FileChannel.open(target, StandardOpenOption.READ)) {
+                file.force(true);
+            } catch (IOException e) {
+                if (!Files.isDirectory(target)) {
+                    throw e;
+                }
+                // Not every platform can open a directory; its entries are then forced with the file system.
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            closed = true;
+            recordsAppended.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join(); // After it forced what was appended.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpointer.shutdown();
+        checkpoint();
+        channel.close();
+    }
+}
+
+/**
+ * The replicas a write is forwarded to, as HOST:PORT, and how many copies, the
+ * primary's included, must have it before it is acknowledged.
+ */
+class Replication {
+    final List<String> targets = new ArrayList<>();
+    final int quorum;
+
+    // Throws NumberFormatException for a quorum that is not a number.
+    Replication(String replicas, String quorum) {
+        for (String target : replicas.split(",")) {
+            if (!target.isEmpty()) {
+                targets.add(target);
+            }
+        }
+        int copies = targets.size() + 1;
+        this.quorum = quorum != null ? Math.max(1, Math.min(copies, Integer.parseInt(quorum))) : copies / 2 + 1;
+    }
+
+    // File name (writeUTF), patch count, then per patch its offset, length and bytes, as in PATCH.
+    static byte[] payload(String fileName, long[] offsets, byte[][] patches) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        try {
+            data.writeUTF(fileName);
+            data.writeInt(offsets.length);
+            for (int i = 0; i < offsets.length; i++) {
+                data.writeLong(offsets[i]);
+                data.writeInt(patches[i].length);
+                data.write(patches[i]);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Not thrown by a ByteArrayOutputStream.
+        }
+        return payload.toByteArray();
+    }
+
+    /**
+     * Sends the write to every replica. The future completes with how many copies have
+     * it, this one included, once the quorum is reached, every replica answered or the
+     * timeout passed. Replicas past the quorum are not waited for.
+     */
+    CompletableFuture<Integer> forward(ReplicaLinks links, byte[] payload, long timeoutMillis) {
+        AtomicInteger copies = new AtomicInteger(1);
+        AtomicInteger answered = new AtomicInteger();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (quorum <= 1 || targets.isEmpty()) {
+            done.complete(null);
+        }
+        for (String target : targets) {
+            links.send(target, Frame.REPLICATE, payload).whenComplete((reply, error) -> {
+                if (error == null && reply.status == Frame.STATUS_OK) {
+                    if (copies.incrementAndGet() >= quorum) {
+                        done.complete(null);
+                    }
+                } else {
+                    System.out.println("Replica " + target + " missed a write: "
+                            + (error != null ? error.getMessage() : new String(reply.payload, StandardCharsets.UTF_8).trim()));
+                }
+                if (answered.incrementAndGet() == targets.size()) {
+                    done.complete(null);
+                }
+            });
+        }
+        // A timeout is reported as a missed quorum.
+        return done.completeOnTimeout(null, timeoutMillis, TimeUnit.MILLISECONDS).thenApply(ignored -> copies.get());
+    }
+}
+
+/**
+ * Binary connections from this server to the replicas it forwards writes to, one per
+ * address, opened on first use and again after a failure. Frames on a link go out in
+ * the order they were sent, and a replica handles them in that order, so it applies
+ * the writes of a file in the order the primary did.
+ */
+class ReplicaLinks {
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+    private final String peerKey;
+
+    ReplicaLinks(String peerKey) {
+        this.peerKey = peerKey;
+    }
+
+    CompletableFuture<Frame> send(String address, byte opcode, byte[] payload) {
+        return links.computeIfAbsent(address, target -> new Link(target, peerKey)).send(opcode, payload);
+    }
+
+    private static class Link {
+        private final String address;
+        private final String peerKey;
+        private Connection connection;
+        private int nextRequestId = 1;
+
+        Link(String address, String peerKey) {
+            this.address = address;
+            this.peerKey = peerKey;
+        }
+
+        synchronized CompletableFuture<Frame> send(byte opcode, byte[] payload) {
+            CompletableFuture<Frame> reply = new CompletableFuture<>();
+            try {
+                if (connection == null || connection.closed) {
+                    connection = new Connection(address, peerKey);
+                }
+                int requestId = nextRequestId++;
+                connection.pending.put(requestId, reply);
+                connection.out.write(Frame.header(opcode, requestId, Frame.STATUS_OK, payload.length));
+                connection.out.write(payload);
+                connection.out.flush();
+            } catch (IOException e) {
+                if (connection != null) {
+                    connection.close(e);
+                }
+                reply.completeExceptionally(e);
+            }
+            return reply;
+        }
+    }
+
+    // One connection of a link; its reader thread completes replies by request id.
+    private static class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final Map<Integer, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        Connection(String address, String peerKey) throws IOException {
+            int colon = address.lastIndexOf(':');
+            socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            String hello = ClientHandler.PEER_HELLO + (peerKey.isEmpty() ? "" : " " + peerKey);
+            socket.getOutputStream().write((hello + "\n").getBytes(StandardCharsets.UTF_8));
+            // Read byte by byte, so no frame data ends up in a buffer.
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                line.write(b);
+            }
+            String reply = line.toString(StandardCharsets.UTF_8).trim();
+            if (!reply.startsWith(ClientHandler.BINARY_HELLO + " OK")) {
+                socket.close();
+                throw new IOException("Replica " + address + " refused the peer connection: " + reply);
+            }
+            out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(in));
+            Thread reader = new Thread(() -> read(input), "replica-link-" + address);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void read(DataInputStream input) {
+            IOException cause = new EOFException("Replica closed the connection");
+            try {
+                Frame frame;
+                while ((frame = Frame.read(input)) != null) {
+                    CompletableFuture<Frame> reply = pending.remove(frame.requestId);
+                    if (reply != null) {
+                        reply.complete(frame);
+                    }
+                }
+            } catch (IOException e) {
+                cause = e;
+            }
+            close(cause);
+        }
+
+        void close(IOException cause) {
+            closed = true;
+            NioEventLoop.closeQuietly(socket);
+            for (CompletableFuture<Frame> reply : pending.values()) {
+                reply.completeExceptionally(cause);
+            }
+            pending.clear();
+        }
+    }
+}
+
+/**
+ * Frame of the binary protocol, negotiated by sending HELLO BINARY as the first line.
+ *
+ * Header (big-endian): opcode (1 byte), request id (4), status (1), flags (1, reserved),
+ * payload length (8), followed by the payload. COMMAND, OPEN and OPEN_STREAM carry the
+ * usual text command line; WRITE and FILE_UPDATE carry the file name (writeUTF) and the
+ * raw content. Replies echo the opcode and request id of the request they answer.
+ * CHUNK frames carry the data of a streaming OPEN, paced by CREDIT frames (an int).
+ * PATCH carries byte ranges to overwrite in a file opened for writing.
+ * REPLICATE carries the same from the primary of a file to its replicas, and is only
+ * taken on a connection opened with HELLO BINARY PEER and the cluster's --peer-key.
+ * STATUS_NOT_MODIFIED answers a conditional OPEN; its payload is the current version.
+ * FLAG_DEFLATE marks a payload compressed with Deflater, used only on connections
+ * opened with HELLO BINARY DEFLATE; the header length is that of the deflated bytes.
+ */
+class Frame {
+    static final int HEADER_SIZE = 15;
+
+    static final byte COMMAND = 1;
+    static final byte OPEN = 2;
+    static final byte WRITE = 3;
+    static final byte FILE_UPDATE = 4;
+    static final byte OPEN_STREAM = 5;
+    static final byte CHUNK = 6;
+    static final byte CREDIT = 7;
+    static final byte PATCH = 8;
+    static final byte REPLICATE = 9;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final byte STATUS_DENIED = 2;
+    static final byte STATUS_END = 3;
+    static final byte STATUS_NOT_MODIFIED = 4;
+
+    static final byte FLAG_DEFLATE = 1;
+
+    final byte opcode;
+    final int requestId;
+    final byte status;
+    final byte flags;
+    final byte[] payload;
+
+    Frame(byte opcode, int requestId, byte status, byte flags, byte[] payload) {
+        this.opcode = opcode;
+        this.requestId = requestId;
+        this.status = status;
+        this.flags = flags;
+        this.payload = payload;
+    }
+
+    static byte[] header(byte opcode, int requestId, byte status, long length) {
+        return header(opcode, requestId, status, (byte) 0, length);
+    }
+
+    static byte[] header(byte opcode, int requestId, byte status, byte flags, long length) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(opcode).putInt(requestId).put(status).put(flags).putLong(length);
+        return header.array();
+    }
+
+    // Null if deflating does not make the data smaller.
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+                if (deflated.size() >= data.length) {
+                    return null;
+                }
+            }
+            return deflated.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // The same frame with its payload inflated and the flag cleared.
+    Frame inflated(int maxLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buffer = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflated payload");
+                }
+                if (inflated.size() + count > maxLength) {
+                    throw new TooLargeException(opcode, requestId, inflated.size() + count, maxLength);
+                }
+                inflated.write(buffer, 0, count);
+            }
+            return new Frame(opcode, requestId, status, (byte) (flags & ~FLAG_DEFLATE), inflated.toByteArray());
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid deflated payload: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Returns null when the peer closed the connection between frames.
+    static Frame read(DataInputStream in) throws IOException {
+        return read(in, Integer.MAX_VALUE);
+    }
+
+    static Frame read(DataInputStream in, int maxLength) throws IOException {
+        int opcode = in.read();
+        if (opcode == -1) {
+            return null;
+        }
+        int requestId = in.readInt();
+        byte status = in.readByte();
+        byte flags = in.readByte();
+        byte[] payload = new byte[checkLength((byte) opcode, requestId, in.readLong(), maxLength)];
+        in.readFully(payload);
+        return new Frame((byte) opcode, requestId, status, flags, payload);
+    }
+
+    // Checked before the payload is allocated, so a header alone cannot claim the heap.
+    static int checkLength(byte opcode, int requestId, long length, int maxLength) throws IOException {
+        if (length < 0) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (length > maxLength) {
+            throw new TooLargeException(opcode, requestId, length, maxLength);
+        }
+        return (int) length;
+    }
+
+    // A frame longer than the reader takes. Its payload is not read, so nothing after it
+    // on the connection can be parsed either.
+    static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final byte opcode;
+        final int requestId;
+
+        TooLargeException(byte opcode, int requestId, long length, int maxLength) {
+            super("Frame of " + length + " bytes is over the limit of " + maxLength);
+            this.opcode = opcode;
+            this.requestId = requestId;
+        }
+    }
+}
+
+/**
+ * LRU cache of file blocks, keyed by path and block index, for the small hot files that
+ * are opened over and over. Blocks live off-heap in one direct buffer carved into
+ * BLOCK_SIZE slots, so a full cache adds nothing for the GC to trace.
+ *
+ * The server invalidates a file whenever it writes, patches or deletes it. Changes made
+ * behind the server's back are caught by comparing the file's size and modification
+ * time with those seen when its blocks were loaded. Files larger than a quarter of the
+ * cache bypass it, so one big OPEN cannot flush everything else.
+ */
+class BlockCache {
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private final ByteBuffer slab;
+    private final long capacity;
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private final LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, FileStamp> stamps = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Bumped by every invalidation; a block read from disk meanwhile may be stale and is not kept.
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    BlockCache(long size) {
+        int slots = (int) Math.max(1, Math.min(size, Integer.MAX_VALUE) / BLOCK_SIZE);
+        this.slab = ByteBuffer.allocateDirect(slots * BLOCK_SIZE);
+        this.capacity = (long) slots * BLOCK_SIZE;
+        for (int i = 0; i < slots; i++) {
+            freeSlots.add(i);
+        }
+    }
+
+    boolean accepts(long fileLength) {
+        return fileLength <= capacity / 4;
+    }
+
+    // Writes count bytes of the file from position on; buffer must hold BLOCK_SIZE bytes.
+    void copyTo(String fileName, RandomAccessFile file, long position, long count, OutputStream out,
+            byte[] buffer) throws IOException {
+        String path = ServerContext.pathKey(fileName);
+        checkStamp(path, file);
+        while (count > 0) {
+            int offset = (int) (position % BLOCK_SIZE);
+            int length = readBlock(path, file.getChannel(), position / BLOCK_SIZE, buffer);
+            int n = (int) Math.min(count, length - offset);
+            if (n <= 0) {
+                throw new EOFException("File shrank while it was being sent");
+            }
+            out.write(buffer, offset, n);
+            position += n;
+            count -= n;
+        }
+    }
+
+    byte[] readAll(String fileName) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            long length = file.length();
+            if (!accepts(length)) {
+                return Files.readAllBytes(Paths.get(fileName));
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) length);
+            copyTo(fileName, file, 0, length, content, new byte[BLOCK_SIZE]);
+            return content.toByteArray();
+        }
+    }
+
+    void invalidate(String fileName) {
+        String path = ServerContext.pathKey(fileName);
+        lock.lock();
+        try {
+            generation++;
+            if (stamps.remove(path) == null) {
+                return; // Nothing of it is cached.
+            }
+            Iterator<Map.Entry<BlockKey, Block>> entries = blocks.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<BlockKey, Block> entry = entries.next();
+                if (entry.getKey().path.equals(path)) {
+                    freeSlots.add(entry.getValue().slot);
+                    entries.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String stats() {
+        lock.lock();
+        try {
+            long requests = hits + misses;
+            return "hits=" + hits + " misses=" + misses + " evictions=" + evictions
+                    + " hit-rate=" + (requests == 0 ? 0 : hits * 100 / requests) + "%"
+                    + " blocks=" + blocks.size() + "/" + (capacity / BLOCK_SIZE)
+                    + " block-size=" + BLOCK_SIZE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkStamp(String path, RandomAccessFile file) throws IOException {
+        FileStamp current = new FileStamp(file.length(), Files.getLastModifiedTime(Paths.get(path)).toMillis());
+        lock.lock();
+        try {
+            FileStamp cached = stamps.get(path);
+            if (cached != null && cached.equals(current)) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        invalidate(path);
+        lock.lock();
+        try {
+            stamps.put(path, current);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Copies one block into buffer and returns its length. Disk reads happen outside the lock.
+    private int readBlock(String path, FileChannel file, long index, byte[] buffer) throws IOException {
+        BlockKey key = new BlockKey(path, index);
+        long readGeneration;
+        lock.lock();
+        try {
+            Block block = blocks.get(key);
+            if (block != null) {
+                hits++;
+                ByteBuffer view = slab.duplicate();
+                view.position(block.slot * BLOCK_SIZE);
+                view.get(buffer, 0, block.length);
+                return block.length;
+            }
+            misses++;
+            readGeneration = generation;
+        } finally {
+            lock.unlock();
+        }
+
+        ByteBuffer target = ByteBuffer.wrap(buffer);
+        long position = index * BLOCK_SIZE;
+        while (target.hasRemaining()) {
+            int read = file.read(target, position + target.position());
+            if (read == -1) {
+                break;
+            }
+        }
+        int length = target.position();
+
+        lock.lock();
+        try {
+            if (generation == readGeneration && stamps.containsKey(path) && !blocks.containsKey(key)) {
+                store(key, buffer, length);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return length;
+    }
+
+    private void store(BlockKey key, byte[] buffer, int length) {
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            Iterator<Block> eldest = blocks.values().iterator();
+            slot = eldest.next().slot;
+            eldest.remove();
+            evictions++;
+        }
+        ByteBuffer view = slab.duplicate();
+        view.position(slot * BLOCK_SIZE);
+        view.put(buffer, 0, length);
+        blocks.put(key, new Block(slot, length));
+    }
+
+    private static class BlockKey {
+        final String path;
+        final long index;
+
+        BlockKey(String path, long index) {
+            this.path = path;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey key = (BlockKey) other;
+            return index == key.index && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + Long.hashCode(index);
+        }
+    }
+
+    private static class Block {
+        final int slot;
+        final int length;
+
+        Block(int slot, int length) {
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    private static class FileStamp {
+        final long length;
+        final long lastModified;
+
+        FileStamp(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof FileStamp)) {
+                return false;
+            }
+            FileStamp stamp = (FileStamp) other;
+            return length == stamp.length && lastModified == stamp.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(length) * 31 + Long.hashCode(lastModified);
+        }
+    }
+}
+
+/**
+ * Deflated OPEN regions, so a hot file is compressed once per version instead of once
+ * per reader. Keyed by path, version and region; a changed file gets a new version,
+ * and invalidation only frees the old entries early. Least recently used entries go
+ * once the total size passes --compress-cache.
+ */
+class CompressionCache {
+    // Stored for regions that deflating does not make smaller.
+    static final byte[] NOT_SMALLER = new byte[0];
+    // Charged per entry on top of its bytes, so NOT_SMALLER entries count as well.
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long capacity;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long size;
+
+    CompressionCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    byte[] get(String fileName, String version, long position, long length) {
+        lock.lock();
+        try {
+            return entries.get(key(ServerContext.pathKey(fileName), version, position, length));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Deflated is null when deflating did not help.
+    void put(String fileName, String version, long position, long length, byte[] deflated) {
+        byte[] entry = deflated != null ? deflated : NOT_SMALLER;
+        if (entry.length + ENTRY_OVERHEAD > capacity / 4) {
+            return;
+        }
+        lock.lock();
+        try {
+            byte[] previous = entries.put(key(ServerContext.pathKey(fileName), version, position, length), entry);
+            size += entry.length + ENTRY_OVERHEAD - (previous != null ? previous.length + ENTRY_OVERHEAD : 0);
+            Iterator<byte[]> eldest = entries.values().iterator();
+            while (size > capacity) {
+                size -= eldest.next().length + ENTRY_OVERHEAD;
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void invalidate(String fileName) {
+        String prefix = ServerContext.pathKey(fileName) + "@";
+        lock.lock();
+        try {
+            Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, byte[]> entry = it.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    size -= entry.getValue().length + ENTRY_OVERHEAD;
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String key(String path, String version, long position, long length) {
+        return path + "@" + version + ":" + position + ":" + length;
+    }
+}
+
+/**
+ * Read-only memory mappings of files of at least --mmap-threshold bytes, shared by all
+ * connections, so an OPEN of a large read-mostly file is written from a slice of the
+ * mapping instead of through a fresh read. Mappings are reference counted: a WRITE or
+ * DELETE retires the file's mapping, which is unmapped once the last region sent from
+ * it is out. Unused mappings are unmapped least recently used first to stay under
+ * --mmap-limit; a file that still does not fit is sent the usual way.
+ */
+class MappedFiles {
+    // Unmaps at once where the JDK allows it; otherwise a retired mapping goes with the GC.
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not available: retired mappings are unmapped by the GC.
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private final long threshold;
+    private final long limit;
+    private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    // Bytes mapped, including retired mappings that are still referenced.
+    private long mapped;
+    private long hits;
+    private long maps;
+    private long unmaps;
+
+    MappedFiles(long threshold, long limit) {
+        this.threshold = threshold;
+        this.limit = limit;
+    }
+
+    // A single MappedByteBuffer covers at most 2 GB.
+    boolean accepts(long fileLength) {
+        return fileLength >= threshold && fileLength <= Math.min(limit, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the file's mapping with a reference taken, mapping it first if needed, or
+     * null if it is not served from a mapping. Every mapping returned must be released.
+     */
+    Mapping acquire(String fileName, RandomAccessFile file) throws IOException {
+        long length = file.length();
+        if (!accepts(length)) {
+            return null;
+        }
+        String path = ServerContext.pathKey(fileName);
+        lock.lock();
+        try {
+            Mapping mapping = mappings.get(path);
+            if (mapping != null && mapping.length != length) {
+                retire(path); // Changed size behind our back.
+                mapping = null;
+            }
+            if (mapping != null) {
+                hits++;
+            } else {
+                makeRoom(length);
+                if (mapped + length > limit) {
+                    return null;
+                }
+                mapping = new Mapping(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length));
+                mappings.put(path, mapping);
+                mapped += length;
+                maps++;
+            }
+            mapping.references++;
+            return mapping;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(Mapping mapping) {
+        lock.lock();
+        try {
+            mapping.references--;
+            if (mapping.retired && mapping.references == 0) {
+                unmap(mapping);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The whole file, copied out of its mapping, or null if it is not served from one.
+    byte[] readAll(String fileName) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            Mapping mapping = acquire(fileName, file);
+            if (mapping == null) {
+                return null;
+            }
+            try {
+                ByteBuffer slice = mapping.slice(0, mapping.length);
+                byte[] content = new byte[slice.remaining()];
+                slice.get(content);
+                return content;
+            } finally {
+                release(mapping);
+            }
+        }
+    }
+
+    void invalidate(String fileName) {
+        lock.lock();
+        try {
+            retire(ServerContext.pathKey(fileName));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String stats() {
+        lock.lock();
+        try {
+            return "files=" + mappings.size() + " mapped=" + mapped + "/" + limit + " hits=" + hits
+                    + " maps=" + maps + " unmaps=" + unmaps;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void retire(String path) {
+        Mapping mapping = mappings.remove(path);
+        if (mapping != null) {
+            mapping.retired = true;
+            if (mapping.references == 0) {
+                unmap(mapping);
+            }
+        }
+    }
+
+    private void makeRoom(long length) {
+        Iterator<Mapping> eldest = mappings.values().iterator();
+        while (mapped + length > limit && eldest.hasNext()) {
+            Mapping mapping = eldest.next();
+            if (mapping.references == 0) {
+                eldest.remove();
+                unmap(mapping);
+            }
+        }
+    }
+
+    // Nothing may touch the buffer or a slice of it afterwards.
+    private void unmap(Mapping mapping) {
+        mapped -= mapping.length;
+        unmaps++;
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, mapping.buffer);
+            } catch (ReflectiveOperationException e) {
+                // Left to the GC.
+            }
+        }
+    }
+
+    static class Mapping {
+        private final MappedByteBuffer buffer;
+        final long length;
+        // Guarded by the MappedFiles lock.
+        private int references;
+        private boolean retired;
+
+        Mapping(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            this.length = buffer.capacity();
+        }
+
+        // Bytes [position, position + count) as a buffer of their own; only valid while referenced.
+        ByteBuffer slice(long position, long count) throws IOException {
+            if (position + count > length) {
+                throw new EOFException("File shrank while it was being sent");
+            }
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) position);
+            slice.limit((int) (position + count));
+            return slice.slice();
+        }
+    }
+}
+
+/**
+ * Write locks and read subscriptions without a manager-wide lock. Write locks are byte
+ * ranges per path (see RangeLocks); the range set of a path and its subscriber set are
+ * only created, changed and dropped inside compute, which locks the single map bin of
+ * the path. OPENs and WRITEs of different files never wait for each other, and nothing
+ * blocks inside a monitor, which matters for ClientHandlers on virtual threads.
+ * Notifications run on the notify executor: the writer that triggers them only takes a
+ * snapshot.
+ *
+ * The write locks of a connection are held under a lease (see Lease) that every request
+ * from it renews. The lease also records the connection's subscriptions and queued
+ * waits, so when the connection closes, everything it held goes at once without a
+ * look at the paths of anyone else.
+ *
+ * Paths are keyed by ServerContext.pathKey, so "f" and "./f" share their locks and
+ * subscribers; a push still names the file the way its subscriber opened it.
+ */
+class LockManager {
+    private final ConcurrentHashMap<String, RangeLocks> lockedFiles = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ClientHandler, Lease> leases = new ConcurrentHashMap<>();
+    // Subscribers of each path, with the name each of them opened it by.
+    private final ConcurrentHashMap<String, ConcurrentHashMap<ClientHandler, String>> readClients =
+            new ConcurrentHashMap<>();
+    private final Executor notifyExecutor;
+    private final BlockCache blockCache;
+    private final MappedFiles mappedFiles;
+    private final long leaseMillis;
+    private final boolean verbose; // --verbose
+    // Lease expiry and lock wait timeouts.
+    private final TimerWheel timers = new TimerWheel("lock-timers", 50, 512);
+
+    LockManager(Executor notifyExecutor, BlockCache blockCache, MappedFiles mappedFiles, long leaseMillis,
+            boolean verbose) {
+        this.notifyExecutor = notifyExecutor;
+        this.blockCache = blockCache;
+        this.mappedFiles = mappedFiles;
+        this.leaseMillis = leaseMillis;
+        this.verbose = verbose;
+    }
+
+    void close() {
+        timers.close();
+    }
+
+    Executor getNotifyExecutor() {
+        return notifyExecutor;
+    }
+
+    // Locks the whole file, including anything appended later.
+    public boolean tryLock(String fileName, ClientHandler owner) {
+        return tryLock(fileName, 0, Long.MAX_VALUE, owner);
+    }
+
+    // Fails if any byte of [start, start + length) is locked already, by anyone, or
+    // wanted by a queued waiter.
+    public boolean tryLock(String fileName, long start, long length, ClientHandler owner) {
+        String path = ServerContext.pathKey(fileName);
+        long end = endOf(start, length);
+        boolean[] locked = new boolean[1];
+        lockedFiles.compute(path, (name, locks) -> {
+            if (locks == null) {
+                locks = new RangeLocks();
+            }
+            locked[0] = locks.tryLock(start, end, owner);
+            return locks.isEmpty() ? null : locks;
+        });
+        if (locked[0]) {
+            leaseOf(owner).add(path);
+        }
+        return locked[0];
+    }
+
+    /**
+     * Like tryLock, but a request that cannot have its range yet joins the path's FIFO
+     * queue instead of failing. The future completes with true once an unlock hands it
+     * the range, or with false after waitMillis. Nobody waits on a thread: the caller
+     * decides what to do with the future.
+     */
+    public CompletableFuture<Boolean> lockWhenFree(String fileName, long start, long length, ClientHandler owner,
+            long waitMillis) {
+        String path = ServerContext.pathKey(fileName);
+        RangeLocks.Waiter waiter = new RangeLocks.Waiter(start, endOf(start, length), owner);
+        Lease lease = leaseOf(owner);
+        lease.addWait(path);
+        // Runs inside the compute that grants, expires or cancels the wait, so a lock is
+        // never held untracked.
+        waiter.granted.thenAccept(granted -> {
+            lease.removeWait(path);
+            if (granted) {
+                leaseOf(owner).add(path);
+            }
+        });
+        lockedFiles.compute(path, (name, locks) -> {
+            if (locks == null) {
+                locks = new RangeLocks();
+            }
+            if (locks.tryLock(waiter.start, waiter.end, owner)) {
+                waiter.granted.complete(true);
+            } else {
+                locks.enqueue(waiter);
+            }
+            return locks;
+        });
+        if (!waiter.granted.isDone()) {
+            waiter.timeout = timers.schedule(() -> expire(path, waiter), waitMillis);
+        }
+        return waiter.granted;
+    }
+
+    private void expire(String path, RangeLocks.Waiter waiter) {
+        lockedFiles.computeIfPresent(path, (name, locks) -> {
+            locks.remove(waiter);
+            return locks.isEmpty() ? null : locks;
+        });
+    }
+
+    // Drops the queued waits of a client whose connection is gone.
+    public void cancelWaits(ClientHandler owner) {
+        Lease lease = leases.get(owner);
+        if (lease == null) {
+            return;
+        }
+        for (String path : lease.waits()) {
+            lockedFiles.computeIfPresent(path, (name, locks) -> {
+                locks.cancelWaits(owner);
+                return locks.isEmpty() ? null : locks;
+            });
+        }
+    }
+
+    // A length of 0 is an append: it locks everything from start on, so the writes that
+    // follow, which all lie past the current end, are inside the range.
+    private static long endOf(long start, long length) {
+        return length == 0 || length > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + length;
+    }
+
+    public boolean isLockedBy(String fileName, ClientHandler owner) {
+        RangeLocks locks = lockedFiles.get(ServerContext.pathKey(fileName));
+        return locks != null && locks.holds(owner);
+    }
+
+    // True if a single range held by the owner covers [start, start + length).
+    public boolean isLockedBy(String fileName, long start, long length, ClientHandler owner) {
+        RangeLocks locks = lockedFiles.get(ServerContext.pathKey(fileName));
+        return locks != null && locks.covers(start, start + length, owner);
+    }
+
+    // Releases every range the owner holds on the file and hands what it can to waiters.
+    public void unlock(String fileName, ClientHandler owner) {
+        String path = ServerContext.pathKey(fileName);
+        lockedFiles.computeIfPresent(path, (name, locks) -> {
+            locks.unlock(owner);
+            return locks.isEmpty() ? null : locks;
+        });
+        Lease lease = leases.get(owner);
+        if (lease != null) {
+            lease.remove(path);
+        }
+    }
+
+    public void renewLease(ClientHandler owner) {
+        Lease lease = leases.get(owner);
+        if (lease != null) {
+            lease.renew();
+        }
+    }
+
+    // Everything a closed connection held: its write locks and its subscriptions.
+    public void release(ClientHandler owner) {
+        Lease lease = leases.remove(owner);
+        if (lease == null) {
+            return;
+        }
+        for (String path : lease.takePaths()) {
+            unlock(path, owner);
+        }
+        for (String path : lease.takeSubscriptions()) {
+            readClients.computeIfPresent(path, (name, clients) -> {
+                clients.remove(owner);
+                return clients.isEmpty() ? null : clients;
+            });
+        }
+    }
+
+    private Lease leaseOf(ClientHandler owner) {
+        return leases.computeIfAbsent(owner, Lease::new);
+    }
+
+    public void addReadClient(String fileName, ClientHandler client) {
+        Lease lease = leaseOf(client);
+        boolean[] added = new boolean[1];
+        readClients.compute(ServerContext.pathKey(fileName), (name, clients) -> {
+            if (clients == null) {
+                clients = new ConcurrentHashMap<>();
+            }
+            added[0] = clients.put(client, fileName) == null; // False when opened again while still subscribed.
+            lease.subscribe(name); // In the compute, so it stays in step with a concurrent removal.
+            return clients;
+        });
+        if (added[0] && verbose) {
+            System.out.println("Added read client for " + fileName);
+        }
+    }
+
+    public void removeReadClient(String fileName, ClientHandler client) {
+        Lease lease = leases.get(client);
+        readClients.computeIfPresent(ServerContext.pathKey(fileName), (name, clients) -> {
+            clients.remove(client);
+            if (lease != null) {
+                lease.unsubscribe(name);
+            }
+            return clients.isEmpty() ? null : clients;
+        });
+    }
+
+    // Binary clients stay subscribed until they UNSUBSCRIBE or disconnect. Text clients
+    // are notified once per registration, as older clients expect. The file is read a
+    // single time and the same bytes are handed to every reader.
+    public void notifyReadClients(String fileName) {
+        Map<ClientHandler, String> subscribers = readClients.get(ServerContext.pathKey(fileName));
+        if (subscribers == null || subscribers.isEmpty()) {
+            return;
+        }
+        Map<ClientHandler, String> clients = new HashMap<>(subscribers);
+        for (ClientHandler client : clients.keySet()) {
+            if (!client.isBinary()) {
+                removeReadClient(fileName, client);
+            }
+        }
+        notifyExecutor.execute(() -> {
+            if (verbose) {
+                System.out.println("Notifying read clients for " + fileName);
+            }
+            byte[] content;
+            try {
+                // Going through the block cache or a new mapping also warms it for the readers' next OPEN.
+                content = mappedFiles != null ? mappedFiles.readAll(fileName) : null;
+                if (content == null) {
+                    content = blockCache != null ? blockCache.readAll(fileName)
+                            : Files.readAllBytes(Paths.get(fileName));
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading file " + fileName + " for update: " + e.getMessage());
+                return;
+            }
+            // One update per spelling of the name, shared by the clients that used it.
+            Map<String, FileUpdate> updates = new HashMap<>();
+            for (Map.Entry<ClientHandler, String> client : clients.entrySet()) {
+                FileUpdate update = updates.get(client.getValue());
+                if (update == null) {
+                    update = new FileUpdate(client.getValue(), content);
+                    updates.put(client.getValue(), update);
+                }
+                client.getKey().sendFileUpdate(update);
+            }
+        });
+    }
+
+    /**
+     * The paths one connection holds write locks on, and the deadline after which they
+     * are taken back. Renewing only moves the deadline: the single wheel timer of the
+     * lease checks it when it fires and re-arms itself for whatever is left, so a
+     * heartbeat costs no timer operation. The timer is armed with the first lock and
+     * lapses once the connection holds none. The paths the connection is subscribed to
+     * or queued for are kept alongside; they do not expire.
+     */
+    private class Lease {
+        private final ClientHandler owner;
+        private final Set<String> paths = new HashSet<>();
+        private final Set<String> subscriptions = new HashSet<>();
+        private final Set<String> waits = new HashSet<>();
+        private long deadline;
+        private TimerWheel.Timeout timeout;
+
+        Lease(ClientHandler owner) {
+            this.owner = owner;
+        }
+
+        synchronized void add(String fileName) {
+            paths.add(fileName);
+            if (timeout == null && leaseMillis > 0) {
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+                timeout = timers.schedule(this::check, leaseMillis);
+            }
+        }
+
+        synchronized void remove(String fileName) {
+            paths.remove(fileName);
+        }
+
+        synchronized void renew() {
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        }
+
+        // The lease is out of the map by then, so unlock no longer reaches remove.
+        synchronized List<String> takePaths() {
+            List<String> taken = new ArrayList<>(paths);
+            paths.clear();
+            return taken;
+        }
+
+        synchronized void subscribe(String path) {
+            subscriptions.add(path);
+        }
+
+        synchronized void unsubscribe(String path) {
+            subscriptions.remove(path);
+        }
+
+        synchronized List<String> takeSubscriptions() {
+            List<String> taken = new ArrayList<>(subscriptions);
+            subscriptions.clear();
+            return taken;
+        }
+
+        synchronized void addWait(String path) {
+            waits.add(path);
+        }
+
+        synchronized void removeWait(String path) {
+            waits.remove(path);
+        }
+
+        // A copy: cancelling a wait comes back through removeWait.
+        synchronized List<String> waits() {
+            return new ArrayList<>(waits);
+        }
+
+        // On the wheel thread. The locks are released outside the monitor, since unlock
+        // comes back through remove.
+        private void check() {
+            List<String> expired;
+            synchronized (this) {
+                timeout = null;
+                if (paths.isEmpty()) {
+                    return;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining > 0) {
+                    timeout = timers.schedule(this::check, TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                    return;
+                }
+                expired = new ArrayList<>(paths);
+            }
+            System.out.println("Lease expired, releasing write locks on " + expired);
+            for (String fileName : expired) {
+                unlock(fileName, owner);
+            }
+        }
+    }
+}
+
+/**
+ * Hashed timing wheel: timers are dropped into one of a fixed ring of buckets by their
+ * deadline, and a single daemon thread visits one bucket per tick, firing what is due
+ * and counting down the rounds of the rest. Scheduling and cancelling are O(1) whatever
+ * the number of timers, at the price of tick granularity. Tasks run on the wheel thread
+ * and must be short.
+ */
+class TimerWheel {
+    private final long tickNanos;
+    private final List<List<Timeout>> buckets = new ArrayList<>();
+    // Handed over to the wheel thread, which alone touches the buckets.
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    TimerWheel(String name, long tickMillis, int size) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        scheduled.add(timeout);
+        return timeout;
     }
 
-    public synchronized void unlock(String fileName) {
-        lockedFiles.remove(fileName);
-        notifyReadClients(fileName);
+    void close() {
+        closed = true;
+        thread.interrupt();
     }
 
-    public synchronized void addReadClient(String fileName, ClientHandler client) {
-        readClients.computeIfAbsent(fileName, k -> new ArrayList<>()).add(client);
-        System.out.println("Added read client for " + fileName);
+    private void run() {
+        long tick = 0;
+        while (!closed) {
+            long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            Timeout timeout;
+            while ((timeout = scheduled.poll()) != null) {
+                long due = timeout.deadline / tickNanos;
+                timeout.rounds = Math.max(0, (due - tick) / buckets.size());
+                buckets.get((int) (Math.max(due, tick) % buckets.size())).add(timeout);
+            }
+            for (Iterator<Timeout> it = buckets.get((int) (tick % buckets.size())).iterator(); it.hasNext();) {
+                timeout = it.next();
+                if (timeout.cancelled) {
+                    it.remove();
+                } else if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    it.remove();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            tick++;
+        }
     }
 
-    public synchronized void removeReadClient(String fileName, ClientHandler client) {
-        if (readClients.containsKey(fileName)) {
-            readClients.get(fileName).remove(client);
+    static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
         }
     }
+}
 
-    public void notifyReadClients(String fileName) {
-        if (readClients.containsKey(fileName)) {
-            System.out.println("Notifying read clients for " + fileName);
-            for (ClientHandler client : readClients.get(fileName)) {
-                client.sendFileUpdate(fileName);
-                removeReadClient(fileName, client);
+/**
+ * The write-locked ranges of one file: non-overlapping [start, end) intervals keyed by
+ * start. Because they never overlap, a new range can only collide with the interval
+ * starting at or before it and the first one starting after it, so a lock attempt is
+ * two lookups whatever the number of writers. Requests that could not have their range
+ * wait in a FIFO queue; a queued range is not given to anyone who arrived later, so
+ * waiters are never overtaken, but a waiter whose range is disjoint from everything
+ * ahead of it need not wait for them. Changes happen inside the LockManager's compute;
+ * the monitor only keeps lookups from other threads consistent.
+ */
+class RangeLocks {
+    private final TreeMap<Long, Range> ranges = new TreeMap<>();
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+    synchronized boolean tryLock(long start, long end, ClientHandler owner) {
+        if (!isFree(start, end)) {
+            return false;
+        }
+        for (Waiter waiter : waiters) {
+            if (waiter.overlaps(start, end)) {
+                return false;
+            }
+        }
+        ranges.put(start, new Range(end, owner));
+        return true;
+    }
+
+    private boolean isFree(long start, long end) {
+        Map.Entry<Long, Range> before = ranges.floorEntry(start);
+        if (before != null && (before.getKey() == start || before.getValue().end > start)) {
+            return false;
+        }
+        Map.Entry<Long, Range> after = ranges.higherEntry(start);
+        return after == null || after.getKey() >= end;
+    }
+
+    synchronized void enqueue(Waiter waiter) {
+        waiters.add(waiter);
+    }
+
+    // A waiter that timed out; it may have been holding back the ones behind it.
+    synchronized void remove(Waiter waiter) {
+        if (waiters.remove(waiter)) {
+            waiter.granted.complete(false);
+            grantWaiters();
+        }
+    }
+
+    synchronized void cancelWaits(ClientHandler owner) {
+        boolean removed = false;
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+            Waiter waiter = it.next();
+            if (waiter.owner == owner) {
+                it.remove();
+                waiter.granted.complete(false);
+                removed = true;
+            }
+        }
+        if (removed) {
+            grantWaiters();
+        }
+    }
+
+    // In arrival order, gives each waiter its range if that is free and no earlier waiter
+    // still in the queue wants any of it.
+    private void grantWaiters() {
+        List<Waiter> stillWaiting = new ArrayList<>();
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+            Waiter waiter = it.next();
+            boolean blocked = !isFree(waiter.start, waiter.end);
+            for (int i = 0; i < stillWaiting.size() && !blocked; i++) {
+                blocked = stillWaiting.get(i).overlaps(waiter.start, waiter.end);
+            }
+            if (blocked) {
+                stillWaiting.add(waiter);
+                continue;
+            }
+            it.remove();
+            ranges.put(waiter.start, new Range(waiter.end, waiter.owner));
+            waiter.granted.complete(true);
+            if (waiter.timeout != null) {
+                waiter.timeout.cancel();
+            }
+        }
+    }
+
+    synchronized boolean covers(long start, long end, ClientHandler owner) {
+        Map.Entry<Long, Range> entry = ranges.floorEntry(start);
+        return entry != null && entry.getValue().owner == owner && entry.getValue().end >= end;
+    }
+
+    synchronized boolean holds(ClientHandler owner) {
+        for (Range range : ranges.values()) {
+            if (range.owner == owner) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void unlock(ClientHandler owner) {
+        if (ranges.values().removeIf(range -> range.owner == owner)) {
+            grantWaiters();
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return ranges.isEmpty() && waiters.isEmpty();
+    }
+
+    static class Waiter {
+        final long start;
+        final long end;
+        final ClientHandler owner;
+        final CompletableFuture<Boolean> granted = new CompletableFuture<>();
+        volatile TimerWheel.Timeout timeout;
+
+        Waiter(long start, long end, ClientHandler owner) {
+            this.start = start;
+            this.end = end;
+            this.owner = owner;
+        }
+
+        boolean overlaps(long otherStart, long otherEnd) {
+            return start < otherEnd && otherStart < end;
+        }
+    }
+
+    private static class Range {
+        final long end;
+        final ClientHandler owner;
+
+        Range(long end, ClientHandler owner) {
+            this.end = end;
+            this.owner = owner;
+        }
+    }
+}
+
+/**
+ * One selector thread of the NIO engine. Connections are pinned to the loop that
+ * registered them, so a connection's ClientHandler only ever runs on this thread.
+ */
+class NioEventLoop implements Runnable {
+    private final Selector selector;
+    private final ServerContext context;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+    private volatile boolean closed;
+
+    NioEventLoop(ServerContext context) throws IOException {
+        this.selector = Selector.open();
+        this.context = context;
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel, this, context);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                if (context.options.verbose) {
+                    System.out.println("Ready to accept commands.");
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!closed) {
+                // Tasks queued by the loop itself come without a wakeup; don't block on them.
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(selector);
+        }
+    }
+
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Already closing, nothing left to do with it.
+        }
+    }
+}
+
+/**
+ * Per-connection state of the NIO engine: a read buffer that is split into command
+ * lines for the ClientHandler, and a queue of pending writes flushed on OP_WRITE.
+ * The queue holds ByteBuffers, slices of memory mappings and file regions that are
+ * sent with transferTo.
+ */
+class NioConnection implements NioTransport {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private final ClientHandler handler;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(Frame.HEADER_SIZE);
+    private ByteBuffer framePayload;
+    // Past this many unsent bytes, FILE_UPDATE pushes wait in the handler's update queue.
+    private static final long BACKLOG_LIMIT = 1024 * 1024;
+
+    private final Queue<Object> writeQueue = new ArrayDeque<>();
+    private final AtomicLong backlog = new AtomicLong();
+    private final Output output = new Output();
+    private SelectionKey key;
+    private boolean closeAfterFlush;
+    // Set while a request waits for a write lock or its replicas, and for good once a frame
+    // was rejected; unread input stays in readBuffer.
+    private boolean suspended;
+
+    NioConnection(SocketChannel channel, NioEventLoop eventLoop, ServerContext context) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.handler = new ClientHandler(output, this, context);
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            processInput();
+        } catch (IOException e) {
+            System.out.println("Connection error: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void processInput() throws IOException {
+        while (readBuffer.hasRemaining() && !suspended) {
+            if (handler.isBinary()) {
+                readFrames();
+                break;
+            }
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                handler.handleLine(takeLine());
+                suspendForWait();
+            } else {
+                lineBuffer.write(b);
+            }
+        }
+        if (suspended) {
+            readBuffer.compact();
+        } else {
+            readBuffer.clear();
+        }
+    }
+
+    // Stops reading while the request just handled waits for its lock, its log record or
+    // its replicas; the loop is free to serve other connections in the meantime.
+    private void suspendForWait() {
+        CompletableFuture<?> wait = handler.pendingWait();
+        if (wait == null) {
+            return;
+        }
+        suspended = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        wait.whenComplete((granted, error) -> eventLoop.execute(this::resumeInput));
+    }
+
+    private void resumeInput() {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            handler.resume();
+            suspended = false;
+            suspendForWait(); // A logged write may go on to wait for its replicas.
+            if (suspended) {
+                return;
+            }
+            readBuffer.flip();
+            processInput();
+            if (!suspended && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            System.out.println("Connection error: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void readFrames() throws IOException {
+        while (readBuffer.hasRemaining() && !suspended) {
+            if (framePayload == null) {
+                while (frameHeader.hasRemaining() && readBuffer.hasRemaining()) {
+                    frameHeader.put(readBuffer.get());
+                }
+                if (frameHeader.hasRemaining()) {
+                    return;
+                }
+                frameHeader.flip();
+                frameHeader.position(1 + 4 + 1 + 1);
+                try {
+                    framePayload = ByteBuffer.allocate(Frame.checkLength(frameHeader.get(0), frameHeader.getInt(1),
+                            frameHeader.getLong(), handler.maxFrame()));
+                } catch (Frame.TooLargeException e) {
+                    rejectFrame(e);
+                    return;
+                }
+            }
+            int count = Math.min(readBuffer.remaining(), framePayload.remaining());
+            framePayload.put(readBuffer.array(), readBuffer.position(), count);
+            readBuffer.position(readBuffer.position() + count);
+            if (!framePayload.hasRemaining()) {
+                Frame frame = new Frame(frameHeader.get(0), frameHeader.getInt(1), frameHeader.get(5),
+                        frameHeader.get(6), framePayload.array());
+                frameHeader.clear();
+                framePayload = null;
+                try {
+                    handler.handleFrame(frame);
+                } catch (Frame.TooLargeException e) {
+                    rejectFrame(e); // Inflated past the limit.
+                    return;
+                }
+                suspendForWait();
+            }
+        }
+    }
+
+    // Nothing more is read; the connection closes once the error reply is out.
+    private void rejectFrame(Frame.TooLargeException e) throws IOException {
+        suspended = true;
+        key.interestOps(0);
+        handler.rejectFrame(e);
+        output.close();
+    }
+
+    private String takeLine() {
+        byte[] bytes = lineBuffer.toByteArray();
+        lineBuffer.reset();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, Charset.defaultCharset());
+    }
+
+    void onWritable() {
+        try {
+            synchronized (writeQueue) {
+                while (!writeQueue.isEmpty()) {
+                    Object next = writeQueue.peek();
+                    if (next instanceof FileRegion) {
+                        FileRegion region = (FileRegion) next;
+                        if (!region.transferTo(channel)) {
+                            return; // Socket buffer is full, wait for the next OP_WRITE.
+                        }
+                        region.close();
+                        backlog.addAndGet(-region.count);
+                    } else if (next instanceof MappedSlice) {
+                        MappedSlice slice = (MappedSlice) next;
+                        channel.write(slice.buffer);
+                        if (slice.buffer.hasRemaining()) {
+                            return;
+                        }
+                        slice.release.run();
+                        backlog.addAndGet(-slice.buffer.limit());
+                    } else {
+                        ByteBuffer buffer = (ByteBuffer) next;
+                        channel.write(buffer);
+                        if (buffer.hasRemaining()) {
+                            return;
+                        }
+                        backlog.addAndGet(-buffer.limit());
+                    }
+                    writeQueue.poll();
+                }
+                key.interestOps(suspended ? 0 : SelectionKey.OP_READ);
             }
+            handler.backlogDrained();
+            if (closeAfterFlush) {
+                close();
+            }
+        } catch (IOException e) {
+            System.out.println("Connection error: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void enqueue(ByteBuffer buffer) {
+        backlog.addAndGet(buffer.limit());
+        synchronized (writeQueue) {
+            writeQueue.add(buffer);
+        }
+        requestWrite();
+    }
+
+    private void enqueue(FileRegion region) {
+        backlog.addAndGet(region.count);
+        synchronized (writeQueue) {
+            writeQueue.add(region);
+        }
+        requestWrite();
+    }
+
+    @Override
+    public void sendShared(byte[] content) {
+        synchronized (output) {
+            output.flush();
+            enqueue(ByteBuffer.wrap(content).asReadOnlyBuffer());
+        }
+    }
+
+    @Override
+    public void sendMapped(ByteBuffer slice, Runnable release) {
+        backlog.addAndGet(slice.limit());
+        synchronized (output) {
+            output.flush();
+            synchronized (writeQueue) {
+                writeQueue.add(new MappedSlice(slice, release));
+            }
+        }
+        requestWrite();
+    }
+
+    @Override
+    public boolean isBacklogged() {
+        return backlog.get() > BACKLOG_LIMIT;
+    }
+
+    @Override
+    public void sendFileRegion(String fileName, long position, long count) throws IOException {
+        FileChannel file = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        synchronized (output) {
+            output.flush();
+            enqueue(new FileRegion(file, position, count));
+        }
+    }
+
+    private void requestWrite() {
+        if (eventLoop.inEventLoop()) {
+            if (key.isValid()) {
+                key.interestOps((suspended ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+            }
+        } else {
+            eventLoop.execute(this::requestWrite);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(this::close);
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        NioEventLoop.closeQuietly(channel);
+        handler.connectionClosed();
+        synchronized (writeQueue) {
+            for (Object pending : writeQueue) {
+                if (pending instanceof FileRegion) {
+                    ((FileRegion) pending).close();
+                } else if (pending instanceof MappedSlice) {
+                    ((MappedSlice) pending).release.run();
+                }
+            }
+            writeQueue.clear();
+        }
+    }
+
+    /** Part of a file waiting to be sent; owns its channel until fully transferred. */
+    private static class FileRegion {
+        private final FileChannel file;
+        private final long count;
+        private long position;
+        private long remaining;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.count = count;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        // Returns true once the whole region has been written.
+        boolean transferTo(SocketChannel target) throws IOException {
+            while (remaining > 0) {
+                long sent = file.transferTo(position, remaining, target);
+                if (sent == 0) {
+                    if (position >= file.size()) {
+                        throw new EOFException("File shrank while it was being sent");
+                    }
+                    return false;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+            return true;
+        }
+
+        void close() {
+            NioEventLoop.closeQuietly(file);
         }
     }
-}
\ No newline at end of file
+
+    /** Slice of a mapping in MappedFiles, holding a reference to it until sent. */
+    private static class MappedSlice {
+        final ByteBuffer buffer;
+        final Runnable release;
+
+        MappedSlice(ByteBuffer buffer, Runnable release) {
+            this.buffer = buffer;
+            this.release = release;
+        }
+    }
+
+    /** Stream the ClientHandler writes to; every flush becomes one queued write. */
+    private class Output extends OutputStream {
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void write(int b) {
+            pending.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            pending.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (pending.size() > 0) {
+                enqueue(ByteBuffer.wrap(pending.toByteArray()));
+                pending.reset();
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+            eventLoop.execute(() -> {
+                closeAfterFlush = true;
+                requestWrite();
+            });
+        }
+    }
+}
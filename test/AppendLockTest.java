@@ -0,0 +1,150 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Appends to a file the way a writer does: OPEN rw at the end of the file with a length
+ * of 0, then a PATCH past the old end. Checks that the PATCH is applied, that a writer of
+ * the existing bytes is not shut out meanwhile, and that one past the end is. Runs once
+ * per engine against an in-process server and exits with 1 on the first failure.
+ *
+ * Build and run from the repository root:
+ *   javac -d out serverA/FileServerA.java test/AppendLockTest.java
+ *   java -cp out AppendLockTest
+ */
+public class AppendLockTest {
+    private static final int PORT = 7310;
+
+    // From the server's Frame, whose header is opcode, request id, status, flags and payload length.
+    private static final byte OPEN = 2;
+    private static final byte FILE_UPDATE = 4;
+    private static final byte PATCH = 8;
+    private static final byte STATUS_OK = 0;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("append-lock-test");
+        int port = PORT;
+        for (String engine : new String[] { "threads", "nio" }) {
+            Path file = directory.resolve("log-" + engine);
+            Files.write(file, bytes("hello"));
+            try (FileServerA server = new FileServerA(port, new String[] { "--engine=" + engine })) {
+                Thread serverThread = new Thread(server::start, "test-server");
+                serverThread.setDaemon(true);
+                serverThread.start();
+                appendThenPatch(port, file.toString());
+            } finally {
+                Files.delete(file);
+            }
+            System.out.println("OK: append then PATCH, --engine=" + engine);
+            port++; // The previous server's port may still be held by its listening socket.
+        }
+        Files.delete(directory);
+    }
+
+    private static void appendThenPatch(int port, String path) throws IOException {
+        try (Connection appender = new Connection(port); Connection other = new Connection(port)) {
+            check(appender.request(OPEN, bytes("OPEN " + path + " rw 5 0")), "OPEN rw at the end of the file");
+            check(other.request(OPEN, bytes("OPEN " + path + " rw 0 5")), "OPEN rw of the bytes before the end");
+            check(!other.request(OPEN, bytes("OPEN " + path + " rw 8 2")), "OPEN rw past the end is denied");
+            check(appender.request(PATCH, patch(path, 5, bytes(" world"))), "PATCH past the old end");
+            check(other.request(PATCH, patch(path, 0, bytes("HELLO"))), "PATCH of the bytes before the end");
+        }
+        String content = new String(Files.readAllBytes(Path.of(path)), StandardCharsets.UTF_8);
+        check(content.equals("HELLO world"), "file content is \"HELLO world\", was \"" + content + "\"");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] patch(String path, long offset, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeUTF(path);
+        payload.writeInt(1);
+        payload.writeLong(offset);
+        payload.writeInt(data.length);
+        payload.write(data);
+        return bytes.toByteArray();
+    }
+
+    // One binary connection with one request in flight.
+    private static class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private int nextId = 1;
+
+        Connection(int port) throws IOException {
+            socket = connect(port);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.write(bytes("HELLO BINARY\n"));
+            out.flush();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                // Handshake reply, nothing to keep.
+            }
+        }
+
+        // The server thread may not be accepting yet.
+        private static Socket connect(int port) throws IOException {
+            for (int attempt = 0;; attempt++) {
+                try {
+                    return new Socket("127.0.0.1", port);
+                } catch (IOException e) {
+                    if (attempt == 50) {
+                        throw e;
+                    }
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException interrupted) {
+                        throw new IOException(interrupted);
+                    }
+                }
+            }
+        }
+
+        // Sends one frame and returns whether its reply was OK, skipping FILE_UPDATE pushes.
+        boolean request(byte opcode, byte[] payload) throws IOException {
+            int id = nextId++;
+            out.writeByte(opcode);
+            out.writeInt(id);
+            out.writeByte(STATUS_OK);
+            out.writeByte(0);
+            out.writeLong(payload.length);
+            out.write(payload);
+            out.flush();
+            while (true) {
+                byte replyOpcode = in.readByte();
+                int replyId = in.readInt();
+                byte status = in.readByte();
+                in.readByte();
+                long length = in.readLong();
+                in.skipNBytes(length);
+                if (replyOpcode != FILE_UPDATE && replyId == id) {
+                    return status == STATUS_OK;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}